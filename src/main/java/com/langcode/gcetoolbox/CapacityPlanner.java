@@ -0,0 +1,186 @@
+package com.langcode.gcetoolbox;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Project wide capacity report of managed instance groups.
+ * <p>
+ * Target size and pending actions of all groups come from one aggregatedList scan, per instance status of
+ * every group is then fetched concurrently, so the report costs one round trip per group in parallel
+ * instead of serial {@link EnvDetector#getSizeOfGroup(Group)} calls.
+ */
+public class CapacityPlanner {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CapacityPlanner.class);
+
+    private final static int DEFAULT_PARALLELISM = 16;
+
+    private final EnvDetector detector;
+    private final int parallelism;
+
+    public CapacityPlanner(EnvDetector detector) {
+        this(detector, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism max number of concurrent listManagedInstances requests
+     */
+    public CapacityPlanner(EnvDetector detector, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.detector = detector;
+        this.parallelism = parallelism;
+    }
+
+    public List<GroupCapacity> getCapacityReport() throws IOException {
+        ArrayList<GroupCapacity> result = new ArrayList<>();
+        streamCapacityReport(result::add);
+        return result;
+    }
+
+    /**
+     * Deliver capacity of each group to consumer as soon as it is ready, consumer is called on the calling
+     * thread. Groups failed to load are skipped and the first error is thrown at the end.
+     */
+    public void streamCapacityReport(Consumer<GroupCapacity> consumer) throws IOException {
+        List<InstanceGroupManager> managers = listManagers();
+        if (managers.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, managers.size()),
+                new ThreadFactoryBuilder().setNameFormat("capacity planner %d").setDaemon(true).build());
+        IOException failure = null;
+        try {
+            CompletionService<GroupCapacity> completion = new ExecutorCompletionService<>(executor);
+            for (InstanceGroupManager manager : managers) {
+                completion.submit(() -> capacityOf(manager));
+            }
+
+            for (int i = 0; i < managers.size(); i++) {
+                try {
+                    consumer.accept(completion.take().get());
+                } catch (ExecutionException ex) {
+                    LOG.error("get group capacity failed", ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof IOException
+                                ? (IOException) ex.getCause()
+                                : new IOException("get group capacity failed", ex.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("capacity report interrupted", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private List<InstanceGroupManager> listManagers() throws IOException {
+        ArrayList<InstanceGroupManager> result = new ArrayList<>();
+
+        Compute.InstanceGroupManagers.AggregatedList req =
+                detector.compute.instanceGroupManagers().aggregatedList(detector.getProjectId());
+        InstanceGroupManagerAggregatedList response;
+        do {
+            response = req.execute();
+
+            Map<String, InstanceGroupManagersScopedList> items = response.getItems();
+
+            if (items == null) {
+                continue;
+            }
+
+            items.forEach((scopeName, scopedList) -> {
+                if (scopedList == null || scopedList.getInstanceGroupManagers() == null) {
+                    return;
+                }
+                for (InstanceGroupManager manager : scopedList.getInstanceGroupManagers()) {
+                    // regional groups are not supported by the rest of toolbox either
+                    if (manager.getZone() != null) {
+                        result.add(manager);
+                    }
+                }
+            });
+
+            req.setPageToken(response.getNextPageToken());
+        } while (response.getNextPageToken() != null);
+
+        return result;
+    }
+
+    private GroupCapacity capacityOf(InstanceGroupManager manager) throws IOException {
+        Group group = new Group(detector.getProjectId(), detector.urlToZone(manager.getZone()), manager.getName());
+
+        List<ManagedInstance> instances = detector.compute.instanceGroupManagers()
+                .listManagedInstances(group.project, group.zone, group.name)
+                .execute()
+                .getManagedInstances();
+        if (instances == null) {
+            instances = Collections.emptyList();
+        }
+
+        int running = 0;
+        int provisioning = 0;
+        int stopped = 0;
+        for (ManagedInstance instance : instances) {
+            String status = instance.getInstanceStatus();
+            if (status == null) {
+                // instance not created yet
+                continue;
+            }
+            switch (status) {
+                case "RUNNING":
+                    running++;
+                    break;
+                case "PROVISIONING":
+                case "STAGING":
+                    provisioning++;
+                    break;
+                case "STOPPING":
+                case "STOPPED":
+                case "SUSPENDING":
+                case "SUSPENDED":
+                case "TERMINATED":
+                    stopped++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        InstanceGroupManagerActionsSummary actions = manager.getCurrentActions();
+        int creating = 0;
+        int deleting = 0;
+        if (actions != null) {
+            creating = count(actions.getCreating()) + count(actions.getRecreating());
+            deleting = count(actions.getDeleting()) + count(actions.getAbandoning());
+        }
+
+        return new GroupCapacity(group, count(manager.getTargetSize()), instances.size(), running, provisioning,
+                stopped, creating, deleting);
+    }
+
+    private static int count(@Nullable Integer value) {
+        return value == null ? 0 : value;
+    }
+}
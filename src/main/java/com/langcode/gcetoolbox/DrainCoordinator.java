@@ -0,0 +1,219 @@
+package com.langcode.gcetoolbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drain this instance before it goes away: mark it as draining so peers drop it on their next refresh,
+ * run registered shutdown hooks within a deadline, then stop or remove itself from group.
+ * <p>
+ * Drain is triggered by preemption / host maintenance termination notice once {@link #watch()} is called,
+ * or explicitly by {@link #drain(String)} when scaling in.
+ */
+public class DrainCoordinator {
+
+    private final static Logger LOG = LoggerFactory.getLogger(DrainCoordinator.class);
+
+    public enum FinalAction {
+        /**
+         * Only run hooks, then clear the draining label so the instance is back in service.
+         */
+        NONE,
+        STOP,
+        REMOVE_FROM_GROUP
+    }
+
+    private final EnvDetector detector;
+    private final ConcurrentHashMap<String, Runnable> hooks = new ConcurrentHashMap<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicBoolean watching = new AtomicBoolean(false);
+    private volatile boolean hooksFinished = false;
+
+    private volatile long deadlineMillis = TimeUnit.SECONDS.toMillis(25);
+    private volatile FinalAction finalAction = FinalAction.STOP;
+
+    /**
+     * Also makes detector exclude draining peers, so instances sharing this code skip each other while draining.
+     */
+    public DrainCoordinator(EnvDetector detector) {
+        this.detector = detector;
+        detector.setExcludeDraining(true);
+    }
+
+    /**
+     * Time given to shutdown hooks, preemption only leaves about 30 seconds so default is 25 seconds.
+     */
+    public void setDeadline(long deadline, TimeUnit timeUnit) {
+        deadlineMillis = timeUnit.toMillis(deadline);
+    }
+
+    public void setFinalAction(FinalAction action) {
+        finalAction = action;
+    }
+
+    public String addShutdownHook(Runnable hook) {
+        String uuid = UUID.randomUUID().toString();
+        hooks.put(uuid, hook);
+        return uuid;
+    }
+
+    public void removeShutdownHook(String hookId) {
+        hooks.remove(hookId);
+    }
+
+    /**
+     * @return true once drain started, false again if its final action failed and drain can be retried, or
+     * if it finished with {@link FinalAction#NONE}
+     */
+    public boolean isDraining() {
+        return draining.get();
+    }
+
+    /**
+     * Start watching termination notice from metadata server, drain will start automatically.
+     */
+    public void watch() {
+        watch(new MetadataEventWatcher(detector.getMetadataUrl()));
+    }
+
+    public void watch(MetadataEventWatcher watcher) {
+        if (!watching.compareAndSet(false, true)) {
+            LOG.warn("drain watch already started");
+            return;
+        }
+        watcher.onEvent(event -> {
+            if (event == MetadataEventWatcher.Event.PREEMPTED
+                    || event == MetadataEventWatcher.Event.TERMINATE_ON_HOST_MAINTENANCE) {
+                // drain blocks until hooks finish, do not hold up the watcher thread
+                Thread thread = new Thread(() -> {
+                    try {
+                        drain("got " + event);
+                    } catch (Exception ex) {
+                        LOG.error("drain failed", ex);
+                    }
+                }, "drain");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
+        watcher.start();
+    }
+
+    /**
+     * Drain this instance, only the first successful call takes effect. If the final action fails drain can be
+     * called again, hooks which already ran are not run twice. With {@link FinalAction#NONE} the instance is back
+     * in service afterwards and can be drained again.
+     *
+     * @return false if drain already started
+     */
+    public boolean drain(String reason) throws IOException, NotInGceError {
+        Instance self = detector.getSelf();
+        if (self == null) {
+            throw new NotInGceError();
+        }
+
+        if (!draining.compareAndSet(false, true)) {
+            return false;
+        }
+
+        LOG.info("start draining: {}", reason);
+
+        try {
+            if (!hooksFinished) {
+                long deadline = System.currentTimeMillis() + deadlineMillis;
+
+                try {
+                    detector.markDraining(self);
+                } catch (IOException ex) {
+                    LOG.error("mark draining failed", ex);
+                }
+
+                runHooks(deadline);
+                hooksFinished = true;
+            }
+            finish(self);
+        } catch (IOException | NotInGceError | RuntimeException ex) {
+            draining.set(false);
+            throw ex;
+        }
+
+        if (finalAction == FinalAction.NONE) {
+            try {
+                detector.clearDraining(self);
+            } catch (IOException ex) {
+                LOG.error("clear draining failed", ex);
+            }
+            hooksFinished = false;
+            draining.set(false);
+        }
+        return true;
+    }
+
+    private void finish(Instance self) throws IOException, NotInGceError {
+        switch (finalAction) {
+            case STOP:
+                LOG.info("drain finished, stop self");
+                detector.stopSelf();
+                break;
+            case REMOVE_FROM_GROUP:
+                Group group = detector.getGroup();
+                if (group != null) {
+                    LOG.info("drain finished, remove self from group {}", group.name);
+                    detector.removeInstanceFromGroup(self.name, group);
+                } else {
+                    LOG.info("drain finished, not in group, stop self");
+                    detector.stopSelf();
+                }
+                break;
+            default:
+                LOG.info("drain finished");
+        }
+    }
+
+    private void runHooks(long deadline) {
+        if (hooks.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("drain hook %d").setDaemon(true).build());
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<String, Runnable> entry : hooks.entrySet()) {
+                Runnable hook = entry.getValue();
+                futures.add(executor.submit(() -> {
+                    try {
+                        hook.run();
+                    } catch (Exception ex) {
+                        LOG.error("shutdown hook got exception", ex);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                long remain = deadline - System.currentTimeMillis();
+                try {
+                    future.get(Math.max(remain, 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    LOG.warn("shutdown hook not finished before deadline");
+                    future.cancel(true);
+                } catch (ExecutionException ex) {
+                    LOG.error("shutdown hook failed", ex);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -22,8 +22,12 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.IntConsumer;
 
 public class EnvDetector {
@@ -32,28 +36,66 @@ public class EnvDetector {
 
     private final static EnvDetector instance = new EnvDetector();
 
+    final static String DRAINING_LABEL = "gcetoolbox-draining";
+
+    // keeps list urls with a name filter well below url length limits
+    private final static int MAX_NAME_FILTER_LENGTH = 1500;
+
+    /**
+     * Metadata server can be redirected by system property or GCE_METADATA_HOST env, e.g. to a local stub.
+     */
+    static String metadataBaseUrl() {
+        String host = System.getProperty("gce.metadata.host");
+        if (host == null || host.isEmpty()) {
+            host = System.getenv("GCE_METADATA_HOST");
+        }
+        if (host == null || host.isEmpty()) {
+            host = "metadata.google.internal";
+        }
+        return "http://" + host + "/computeMetadata/v1/";
+    }
+
     public static EnvDetector getInstance() {
         return instance;
     }
 
+    /**
+     * Create a standalone detector bound to given compute api and metadata server instead of the real ones,
+     * e.g. simulated ones in tests. Several of them can simulate a group in one JVM.
+     */
+    public static EnvDetector withBackend(Compute compute, String projectId, String metadataUrl) {
+        EnvDetector detector = new EnvDetector(metadataUrl);
+        detector.compute = compute;
+        detector.backendProjectId = projectId;
+        return detector;
+    }
+
     private Timer timer = null;
 
-    private boolean inGCE = true;
-    private String projectId = "";
-    private String name = "";
-    private String zone = "";
-    private String privateIP = "";
-    private Instance vmInstance = null;
-    private InstanceDetail vmDetail = null;
-    private Group group = null;
-    private volatile ArrayList<Instance> peers = null;
+    private volatile EnvSnapshot snapshot = null;
+    private final AtomicReference<CompletableFuture<EnvSnapshot>> detecting = new AtomicReference<>();
 
     private final ConcurrentHashMap<String, IntConsumer> numPeerListeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Consumer<List<Instance>>> peerListeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Runnable> refreshListeners = new ConcurrentHashMap<>();
+
+    // listeners are registered and notified under this lock so they see snapshots in order
+    private final Object notifyLock = new Object();
+    private EnvSnapshot notified = null;
 
-    Compute compute = null;
+    volatile Compute compute = null;
+    private volatile boolean excludeDraining = false;
+    private String backendProjectId = null;
+    private final String metadataUrl;
+
+    private Topology topology = null;
 
     private EnvDetector() {
+        this(metadataBaseUrl());
+    }
 
+    private EnvDetector(String metadataUrl) {
+        this.metadataUrl = metadataUrl;
     }
 
     String urlToZone(String fullZoneStr) {
@@ -61,66 +103,200 @@ public class EnvDetector {
         return parts.get(parts.size() - 1);
     }
 
+    /**
+     * Detect environment and refresh peers. Concurrent calls share one detection instead of repeating it.
+     * Listeners are notified when peers differ from what they were last told, whoever called detect.
+     */
     public void detect() throws IOException, GceToolBoxError {
-        if (!hasDetect()) {
-            // the following data won't change
-            projectId = ServiceOptions.getDefaultProjectId();
+        CompletableFuture<EnvSnapshot> mine = new CompletableFuture<>();
+        while (!detecting.compareAndSet(null, mine)) {
+            CompletableFuture<EnvSnapshot> running = detecting.get();
+            if (running != null) {
+                awaitDetect(running);
+                return;
+            }
+        }
+
+        try {
+            EnvSnapshot current = snapshot;
+            EnvSnapshot detected = current == null ? detectFirstTime() : current;
+            snapshot = detected.withPeers(detectPeers(detected));
+            mine.complete(snapshot);
+        } catch (IOException | GceToolBoxError | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            detecting.set(null);
+        }
+
+        notifyListeners();
+        refreshListeners.forEach((k, v) -> {
             try {
-                name = fetchMeta("instance/name", "");
-            } catch (NotInGceError ex) {
-                LOG.warn("Not in google cloud");
+                v.run();
+            } catch (Exception ex) {
+                LOG.error("refresh listener got exception", ex);
             }
-            if (name.isEmpty()) {
-                inGCE = false;
-                name = getServerHostname();
+        });
+    }
+
+    private void notifyListeners() {
+        synchronized (notifyLock) {
+            EnvSnapshot current = snapshot;
+            EnvSnapshot prev = notified;
+            if (current == null || current == prev) {
+                return;
             }
-            if (inGCE) {
-                try {
-                    zone = urlToZone(fetchMeta("instance/zone", ""));
-                    privateIP = fetchMeta("instance/network-interfaces/0/ip", "");
-                    vmInstance = new Instance(projectId, zone, name);
-                } catch (NotInGceError ex) {
-                    assert false;
-                }
+            notified = current;
+
+            int prevNum = prev == null ? 1 : prev.getNumberOfPeers();
+            int newNum = current.getNumberOfPeers();
+            if (newNum != prevNum) {
+                numPeerListeners.forEach((k, v) -> {
+                    try {
+                        v.accept(newNum);
+                    } catch (Exception ex) {
+                        LOG.error("refresh listener got exception", ex);
+                    }
+                });
+            }
+            if (!samePeers(prev == null ? null : prev.peers, current.peers)) {
+                List<Instance> newPeers = current.getPeers();
+                peerListeners.forEach((k, v) -> {
+                    try {
+                        v.accept(newPeers);
+                    } catch (Exception ex) {
+                        LOG.error("peer listener got exception", ex);
+                    }
+                });
+            }
+        }
+    }
+
+    private void awaitDetect(CompletableFuture<EnvSnapshot> running) throws IOException, GceToolBoxError {
+        try {
+            running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GceToolBoxError("wait for detect interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GceToolBoxError) {
+                throw (GceToolBoxError) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new GceToolBoxError("detect failed", cause);
+        }
+    }
+
+    /**
+     * The following data won't change, only detect them once.
+     */
+    private EnvSnapshot detectFirstTime() throws IOException, GceToolBoxError {
+        boolean inGCE = true;
+        String projectId = backendProjectId != null ? backendProjectId : ServiceOptions.getDefaultProjectId();
+        String name = "";
+        String zone = "";
+        String privateIP = "";
+        Instance vmInstance = null;
+        InstanceDetail vmDetail = null;
+        Group group = null;
+
+        try {
+            name = fetchMeta("instance/name", "");
+        } catch (NotInGceError ex) {
+            LOG.warn("Not in google cloud");
+        }
+        if (name.isEmpty()) {
+            inGCE = false;
+            name = getServerHostname();
+        }
+        if (inGCE) {
+            try {
+                zone = urlToZone(fetchMeta("instance/zone", ""));
+                privateIP = fetchMeta("instance/network-interfaces/0/ip", "");
+                vmInstance = new Instance(projectId, zone, name);
+            } catch (NotInGceError ex) {
+                assert false;
+            }
+        }
 
+        if (compute == null) {
             try {
                 compute = initGceApi();
             } catch (GeneralSecurityException ex) {
                 throw new GceToolBoxError("Init Gce API failed with security error", ex);
             }
+        }
+
+        if (inGCE) {
+            vmDetail = getInstanceDetail(vmInstance);
+            group = getGroupOfInstance(vmInstance);
 
-            if (inGCE) {
-                vmDetail = getInstanceDetail(vmInstance);
-                group = getGroupOfInstance(vmInstance);
+            // left by a drain before this instance was stopped and started again
+            if (vmDetail.getLabels().containsKey(DRAINING_LABEL)) {
+                LOG.info("clear draining label left by previous run");
+                try {
+                    clearDraining(vmInstance);
+                } catch (IOException ex) {
+                    LOG.error("clear draining failed", ex);
+                }
             }
         }
 
-        if (group != null) {
-            peers = getInstanceOfGroup(group);
-        } else {
-            if (vmInstance != null) {
-                peers = new ArrayList<>();
-                peers.add(vmInstance);
+        return new EnvSnapshot(inGCE, projectId, name, zone, privateIP, vmInstance, vmDetail, group, null);
+    }
+
+    @Nullable
+    private List<Instance> detectPeers(EnvSnapshot env) throws IOException {
+        if (env.group != null) {
+            ArrayList<Instance> groupPeers = getInstanceOfGroup(env.group);
+            if (excludeDraining) {
+                groupPeers.removeAll(getDrainingInstances(env.group));
             }
+            return groupPeers;
+        }
+        if (env.vmInstance != null) {
+            return Collections.singletonList(env.vmInstance);
         }
+        return null;
+    }
+
+    /**
+     * Drop draining instances from peers, it costs one more list call per refresh so it is off by default.
+     * Creating a {@link DrainCoordinator} turns it on.
+     */
+    public void setExcludeDraining(boolean exclude) {
+        excludeDraining = exclude;
     }
 
     public boolean hasDetect() {
-        return !projectId.isEmpty();
+        return snapshot != null;
     }
 
-    public void enableAutoRefresh(long interval, TimeUnit timeUnit) throws IOException, GceToolBoxError {
+    /**
+     * @return result of last detect, null if not detected yet
+     */
+    @Nullable
+    public EnvSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized void enableAutoRefresh(long interval, TimeUnit timeUnit) throws IOException, GceToolBoxError {
         if (!hasDetect()) {
             detect();
         }
 
-        if (!inGCE) {
+        if (!runningInGCE()) {
             LOG.warn("not in GCE, can not enable auto refresh");
             return;
         }
 
-        if (group == null) {
+        if (getGroup() == null) {
             LOG.warn("not in instance group, can not enable auto refresh");
             return;
         }
@@ -136,18 +312,7 @@ public class EnvDetector {
             @Override
             public void run() {
                 try {
-                    int prevNum = getNumberOfPeers();
                     detect();
-                    int newNum = getNumberOfPeers();
-                    if (newNum != prevNum) {
-                        numPeerListeners.forEach((k, v) -> {
-                            try {
-                                v.accept(newNum);
-                            } catch (Exception ex) {
-                                LOG.error("refresh listener got exception", ex);
-                            }
-                        });
-                    }
                 } catch (Exception ex) {
                     LOG.error("Refresh env failed.", ex);
                 }
@@ -155,8 +320,23 @@ public class EnvDetector {
         }, period, period);
     }
 
+    public synchronized void disableAutoRefresh() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    static boolean samePeers(@Nullable List<Instance> a, @Nullable List<Instance> b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.size() == b.size() && new HashSet<>(a).equals(new HashSet<>(b));
+    }
+
     public boolean runningInGCE() {
-        return inGCE;
+        EnvSnapshot current = snapshot;
+        return current == null || current.inGCE;
     }
 
     String getServerHostname() throws IOException {
@@ -178,7 +358,7 @@ public class EnvDetector {
 
     public ArrayList<String> fetchMeta(String metaPath) throws IOException, GceToolBoxError, NotInGceError {
         try {
-            URL url = new URL("http://metadata.google.internal/computeMetadata/v1/" + metaPath);
+            URL url = new URL(metadataUrl + metaPath);
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             conn.addRequestProperty("Metadata-Flavor", "Google");
             conn.setConnectTimeout(500);
@@ -216,40 +396,70 @@ public class EnvDetector {
         return fetchMeta("instance/attributes/" + attrName, defaultValue);
     }
 
+    public String getMetadataUrl() {
+        return metadataUrl;
+    }
+
     public String getProjectId() {
-        return projectId;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.projectId;
     }
 
     public String getName() {
-        return name;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.name;
     }
 
     public String getZone() {
-        return zone;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.zone;
     }
 
     public String getPrivateIP() {
-        return privateIP;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.privateIP;
     }
 
     public String getPublicIP() {
-        return vmDetail == null ? "" : vmDetail.publicIP;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.getPublicIP();
     }
 
     public String getUsedByGroup() {
-        return group == null ? "" : group.name;
+        EnvSnapshot current = snapshot;
+        return current == null ? "" : current.getUsedByGroup();
     }
 
     public int getNumberOfPeers() {
-        return peers == null ? 1 : peers.size();
+        EnvSnapshot current = snapshot;
+        return current == null ? 1 : current.getNumberOfPeers();
+    }
+
+    @Nullable
+    public Instance getSelf() {
+        EnvSnapshot current = snapshot;
+        return current == null ? null : current.vmInstance;
+    }
+
+    @Nullable
+    public Group getGroup() {
+        EnvSnapshot current = snapshot;
+        return current == null ? null : current.group;
+    }
+
+    public List<Instance> getPeers() {
+        EnvSnapshot current = snapshot;
+        return current == null ? Collections.emptyList() : current.getPeers();
     }
 
     public String onNumberOfPeersChanged(IntConsumer callback) {
         String uuid = UUID.randomUUID().toString();
-        numPeerListeners.put(uuid, callback);
-        int num = getNumberOfPeers();
-        if (num > 1) {
-            callback.accept(num);
+        synchronized (notifyLock) {
+            numPeerListeners.put(uuid, callback);
+            int num = notified == null ? 1 : notified.getNumberOfPeers();
+            if (num > 1) {
+                callback.accept(num);
+            }
         }
         return uuid;
     }
@@ -258,6 +468,55 @@ public class EnvDetector {
         numPeerListeners.remove(listenerId);
     }
 
+    /**
+     * Called whenever membership of the group changes, even if number of peers stays the same.
+     */
+    public String onPeersChanged(Consumer<List<Instance>> callback) {
+        String uuid = UUID.randomUUID().toString();
+        synchronized (notifyLock) {
+            peerListeners.put(uuid, callback);
+            // deliver what other listeners were told, a newer snapshot is delivered right after by detect
+            if (notified != null && notified.hasPeers()) {
+                callback.accept(notified.getPeers());
+            }
+        }
+        return uuid;
+    }
+
+    public void removePeersChangeListener(String listenerId) {
+        peerListeners.remove(listenerId);
+    }
+
+    /**
+     * Called after every successful detect even if nothing changed, e.g. to follow status of peers.
+     * Callback runs on the detecting thread and should not block.
+     */
+    public String onRefreshed(Runnable callback) {
+        String uuid = UUID.randomUUID().toString();
+        refreshListeners.put(uuid, callback);
+        return uuid;
+    }
+
+    public void removeRefreshListener(String listenerId) {
+        refreshListeners.remove(listenerId);
+    }
+
+    /**
+     * Create a shard ring which follows peers of this instance, enable auto refresh to keep it updated.
+     * Close the ring to stop following.
+     *
+     * @throws IllegalStateException if not detected yet, the ring would not know which instance is self
+     */
+    public ShardRing createShardRing(int virtualNodes) {
+        if (!hasDetect()) {
+            throw new IllegalStateException("detect before creating shard ring");
+        }
+        ShardRing ring = new ShardRing(getSelf(), virtualNodes);
+        String listenerId = onPeersChanged(ring::update);
+        ring.setDetach(() -> removePeersChangeListener(listenerId));
+        return ring;
+    }
+
     private Compute initGceApi() throws GeneralSecurityException, IOException {
         HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
 
@@ -295,7 +554,7 @@ public class EnvDetector {
 
             for (InstanceWithNamedPorts instance : response.getItems()) {
                 String vmURL = instance.getInstance();
-                System.out.println(vmURL);
+                LOG.debug("group {} instance {}", group.name, vmURL);
                 result.add(new Instance(vmURL));
             }
 
@@ -305,6 +564,93 @@ public class EnvDetector {
         return result;
     }
 
+    /**
+     * Instances in the zone of group which marked themselves as draining, they should not receive new work.
+     */
+    public Set<Instance> getDrainingInstances(Group group) throws IOException {
+        return getInstancesWithLabel(group.project, group.zone, DRAINING_LABEL, "true").keySet();
+    }
+
+    public void markDraining(Instance instance) throws IOException {
+        setLabel(instance, DRAINING_LABEL, "true");
+    }
+
+    public void clearDraining(Instance instance) throws IOException {
+        setLabel(instance, DRAINING_LABEL, null);
+    }
+
+    /**
+     * Instances in zone which has label key set to value, found with a server side filter.
+     */
+    public Map<Instance, InstanceDetail> getInstancesWithLabel(String project, String zone, String key, String value)
+            throws IOException {
+        LinkedHashMap<Instance, InstanceDetail> result = new LinkedHashMap<>();
+
+        Compute.Instances.List req = compute.instances().list(project, zone);
+        req.setFilter("labels." + key + " eq " + value);
+
+        InstanceList response;
+        do {
+            response = req.execute();
+            if (response.getItems() == null) {
+                continue;
+            }
+
+            for (com.google.api.services.compute.model.Instance instanceData : response.getItems()) {
+                result.put(new Instance(project, zone, instanceData.getName()), new InstanceDetail(instanceData));
+            }
+
+            req.setPageToken(response.getNextPageToken());
+        } while (response.getNextPageToken() != null);
+
+        return result;
+    }
+
+    /**
+     * Set or remove (value is null) one label of instance, other labels are kept.
+     */
+    public void setLabel(Instance instance, String key, @Nullable String value) throws IOException {
+        com.google.api.services.compute.model.Instance instanceData =
+                compute.instances().get(instance.project, instance.zone, instance.name).execute();
+        setLabel(instance, instanceData, key, value);
+    }
+
+    /**
+     * Remove label of a stopped instance only if it still has expected value. Label fingerprint makes the
+     * update fail with 412 if labels are changed by someone else in between.
+     *
+     * @return false if instance is not stopped or label has another value
+     */
+    boolean removeLabelOfStopped(Instance instance, String key, String expectedValue) throws IOException {
+        com.google.api.services.compute.model.Instance instanceData =
+                compute.instances().get(instance.project, instance.zone, instance.name).execute();
+        InstanceDetail detail = new InstanceDetail(instanceData);
+        if (!detail.isStopped() || !expectedValue.equals(detail.getLabels().get(key))) {
+            return false;
+        }
+        setLabel(instance, instanceData, key, null);
+        return true;
+    }
+
+    private void setLabel(Instance instance, com.google.api.services.compute.model.Instance instanceData,
+                          String key, @Nullable String value) throws IOException {
+
+        HashMap<String, String> labels = new HashMap<>();
+        if (instanceData.getLabels() != null) {
+            labels.putAll(instanceData.getLabels());
+        }
+        if (value == null) {
+            labels.remove(key);
+        } else {
+            labels.put(key, value);
+        }
+
+        InstancesSetLabelsRequest request = new InstancesSetLabelsRequest();
+        request.setLabels(labels);
+        request.setLabelFingerprint(instanceData.getLabelFingerprint());
+        compute.instances().setLabels(instance.project, instance.zone, instance.name, request).execute();
+    }
+
     public InstanceDetail getInstanceDetail(Instance instance) throws IOException, GceToolBoxError {
         Compute.Instances.Get req = compute.instances().get(instance.project, instance.zone, instance.name);
         com.google.api.services.compute.model.Instance instanceData = req.execute();
@@ -316,6 +662,76 @@ public class EnvDetector {
     }
 
 
+    /**
+     * Detail of every instance in group with a few name filtered list calls instead of one call per instance.
+     *
+     * @return details keyed by instance, in group order
+     */
+    public Map<Instance, InstanceDetail> getInstanceDetailsOfGroup(Group group) throws IOException {
+        return getInstanceDetails(group.project, group.zone, getInstanceOfGroup(group));
+    }
+
+    /**
+     * Detail of current peers, see {@link #getInstanceDetailsOfGroup(Group)}.
+     */
+    public Map<Instance, InstanceDetail> getPeerDetails() throws IOException {
+        EnvSnapshot current = snapshot;
+        if (current == null || current.vmInstance == null) {
+            return Collections.emptyMap();
+        }
+        return getInstanceDetails(current.projectId, current.zone, current.getPeers());
+    }
+
+    private Map<Instance, InstanceDetail> getInstanceDetails(String project, String zone, List<Instance> instances)
+            throws IOException {
+        HashMap<Instance, InstanceDetail> found = new HashMap<>();
+
+        // instance names only contain [a-z0-9-], so they can be joined into one regular expression as is
+        StringBuilder names = new StringBuilder();
+        for (Instance instance : instances) {
+            if (names.length() > 0 && names.length() + instance.name.length() >= MAX_NAME_FILTER_LENGTH) {
+                listInstancesByName(project, zone, names.toString(), found);
+                names.setLength(0);
+            }
+            if (names.length() > 0) {
+                names.append('|');
+            }
+            names.append(instance.name);
+        }
+        if (names.length() > 0) {
+            listInstancesByName(project, zone, names.toString(), found);
+        }
+
+        LinkedHashMap<Instance, InstanceDetail> result = new LinkedHashMap<>();
+        for (Instance instance : instances) {
+            InstanceDetail detail = found.get(instance);
+            if (detail != null) {
+                result.put(instance, detail);
+            }
+        }
+        return result;
+    }
+
+    private void listInstancesByName(String project, String zone, String namePattern,
+                                     Map<Instance, InstanceDetail> found) throws IOException {
+        Compute.Instances.List req = compute.instances().list(project, zone);
+        req.setFilter("name eq (" + namePattern + ")");
+
+        InstanceList response;
+        do {
+            response = req.execute();
+            if (response.getItems() == null) {
+                continue;
+            }
+
+            for (com.google.api.services.compute.model.Instance instanceData : response.getItems()) {
+                found.put(new Instance(project, zone, instanceData.getName()), new InstanceDetail(instanceData));
+            }
+
+            req.setPageToken(response.getNextPageToken());
+        } while (response.getNextPageToken() != null);
+    }
+
     @Nullable
     public Group getGroupOfInstance(Instance instance) throws IOException {
         Compute.InstanceGroups.List req = compute.instanceGroups().list(instance.project, instance.zone);
@@ -349,7 +765,7 @@ public class EnvDetector {
     public List<Zone> getAllZones() throws IOException {
         ArrayList<Zone> result = new ArrayList<>();
 
-        Compute.Zones.List req = compute.zones().list(projectId);
+        Compute.Zones.List req = compute.zones().list(getProjectId());
         ZoneList response;
         do {
             response = req.execute();
@@ -367,8 +783,37 @@ public class EnvDetector {
         return result;
     }
 
+    /**
+     * Shared topology cache of current project, refreshed hourly unless an interval was given before.
+     * Detects environment first if not yet, project is needed to load topology.
+     */
+    public synchronized Topology getTopology() throws IOException, GceToolBoxError {
+        if (topology == null) {
+            return getTopology(1, TimeUnit.HOURS);
+        }
+        return topology;
+    }
+
+    /**
+     * Shared topology cache of current project, refreshed every interval from now on.
+     */
+    public synchronized Topology getTopology(long refreshInterval, TimeUnit timeUnit)
+            throws IOException, GceToolBoxError {
+        if (!hasDetect()) {
+            detect();
+        }
+
+        if (topology == null) {
+            topology = new Topology(this);
+        }
+        topology.disableAutoRefresh();
+        topology.enableAutoRefresh(refreshInterval, timeUnit);
+        return topology;
+    }
+
     public Map<String, Group> getGroupsOfZone(String zone) throws IOException {
         HashMap<String, Group> result = new HashMap<>();
+        String projectId = getProjectId();
 
         Compute.InstanceGroups.List req = compute.instanceGroups().list(projectId, zone);
         InstanceGroupList response;
@@ -392,6 +837,18 @@ public class EnvDetector {
 
     public Map<String, Group> getAllGroups() throws IOException {
         HashMap<String, Group> result = new HashMap<>();
+        for (Group group : listAllGroups()) {
+            result.put(group.getName(), group);
+        }
+        return result;
+    }
+
+    /**
+     * Zonal groups of project with one aggregated scan, groups of the same name in different zones are all kept.
+     */
+    List<Group> listAllGroups() throws IOException {
+        ArrayList<Group> result = new ArrayList<>();
+        String projectId = getProjectId();
 
         Compute.InstanceGroups.AggregatedList req = compute.instanceGroups().aggregatedList(projectId);
         InstanceGroupAggregatedList response;
@@ -413,9 +870,11 @@ public class EnvDetector {
                     return;
                 }
                 for (InstanceGroup group : groups) {
-                    LOG.debug("zone {}", group.getZone());
-                    Group groupObj = new Group(projectId, urlToZone(group.getZone()), group.getName());
-                    result.put(groupObj.getName(), groupObj);
+                    // regional groups have no zone
+                    if (group.getZone() == null) {
+                        continue;
+                    }
+                    result.add(new Group(projectId, urlToZone(group.getZone()), group.getName()));
                 }
             });
 
@@ -445,10 +904,11 @@ public class EnvDetector {
     }
 
     public void stopSelf() throws IOException, NotInGceError {
-        if (vmInstance == null) {
+        Instance self = getSelf();
+        if (self == null) {
             throw new NotInGceError();
         }
-        stopInstance(vmInstance);
+        stopInstance(self);
     }
 
     public void stopInstance(Instance instance) throws IOException {
@@ -461,6 +921,11 @@ public class EnvDetector {
         request.execute();
     }
 
+    public void deleteInstance(Instance instance) throws IOException {
+        Compute.Instances.Delete request = compute.instances().delete(instance.project, instance.zone, instance.name);
+        request.execute();
+    }
+
     @Nullable
     InstanceTemplate getInstanceTemplate(String project, String template) throws IOException {
         Compute.InstanceTemplates.Get req = compute.instanceTemplates().get(project, template);
@@ -468,6 +933,11 @@ public class EnvDetector {
     }
 
     public void createInstance(Instance instance, String template, @Nullable Map<String, String> extraMeta) throws IOException, GceToolBoxError {
+        createInstance(instance, template, extraMeta, null);
+    }
+
+    public void createInstance(Instance instance, String template, @Nullable Map<String, String> extraMeta,
+                               @Nullable Map<String, String> extraLabels) throws IOException, GceToolBoxError {
         InstanceTemplate instanceTemplate = getInstanceTemplate(instance.project, template);
         if (instanceTemplate == null) {
             throw new GceToolBoxError("Can not create instance because template not found");
@@ -495,7 +965,16 @@ public class EnvDetector {
 
         data.setServiceAccounts(conf.getServiceAccounts());
         data.setTags(conf.getTags());
-        data.setLabels(conf.getLabels());
+        if (extraLabels != null) {
+            HashMap<String, String> labels = new HashMap<>();
+            if (conf.getLabels() != null) {
+                labels.putAll(conf.getLabels());
+            }
+            labels.putAll(extraLabels);
+            data.setLabels(labels);
+        } else {
+            data.setLabels(conf.getLabels());
+        }
         data.setCanIpForward(conf.getCanIpForward());
         data.setScheduling(conf.getScheduling());
 
@@ -0,0 +1,99 @@
+package com.langcode.gcetoolbox;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of one {@link EnvDetector#detect()}. It is published as a whole, so readers always see
+ * values of the same refresh.
+ */
+public final class EnvSnapshot {
+
+    final boolean inGCE;
+    final String projectId;
+    final String name;
+    final String zone;
+    final String privateIP;
+    final Instance vmInstance;
+    final InstanceDetail vmDetail;
+    final Group group;
+    final List<Instance> peers;
+
+    EnvSnapshot(boolean inGCE, String projectId, String name, String zone, String privateIP,
+                @Nullable Instance vmInstance, @Nullable InstanceDetail vmDetail, @Nullable Group group,
+                @Nullable List<Instance> peers) {
+        this.inGCE = inGCE;
+        this.projectId = projectId;
+        this.name = name;
+        this.zone = zone;
+        this.privateIP = privateIP;
+        this.vmInstance = vmInstance;
+        this.vmDetail = vmDetail;
+        this.group = group;
+        this.peers = peers == null ? null : Collections.unmodifiableList(new ArrayList<>(peers));
+    }
+
+    /**
+     * Same environment with refreshed peers, the static part is only detected once.
+     */
+    EnvSnapshot withPeers(@Nullable List<Instance> newPeers) {
+        return new EnvSnapshot(inGCE, projectId, name, zone, privateIP, vmInstance, vmDetail, group, newPeers);
+    }
+
+    public boolean runningInGCE() {
+        return inGCE;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getPrivateIP() {
+        return privateIP;
+    }
+
+    public String getPublicIP() {
+        return vmDetail == null ? "" : vmDetail.getPublicIP();
+    }
+
+    @Nullable
+    public Instance getSelf() {
+        return vmInstance;
+    }
+
+    @Nullable
+    public InstanceDetail getSelfDetail() {
+        return vmDetail;
+    }
+
+    @Nullable
+    public Group getGroup() {
+        return group;
+    }
+
+    public String getUsedByGroup() {
+        return group == null ? "" : group.name;
+    }
+
+    public int getNumberOfPeers() {
+        return peers == null ? 1 : peers.size();
+    }
+
+    public List<Instance> getPeers() {
+        return peers == null ? Collections.emptyList() : peers;
+    }
+
+    boolean hasPeers() {
+        return peers != null;
+    }
+}
@@ -0,0 +1,85 @@
+package com.langcode.gcetoolbox;
+
+/**
+ * Size and instance status counts of one managed instance group, see {@link CapacityPlanner}.
+ */
+public class GroupCapacity {
+
+    final Group group;
+    final int targetSize;
+    final int currentSize;
+    final int running;
+    final int provisioning;
+    final int stopped;
+    final int creating;
+    final int deleting;
+
+    GroupCapacity(Group group, int targetSize, int currentSize, int running, int provisioning, int stopped,
+                  int creating, int deleting) {
+        this.group = group;
+        this.targetSize = targetSize;
+        this.currentSize = currentSize;
+        this.running = running;
+        this.provisioning = provisioning;
+        this.stopped = stopped;
+        this.creating = creating;
+        this.deleting = deleting;
+    }
+
+    public Group getGroup() {
+        return group;
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Number of instances currently in the group, regardless of their status.
+     */
+    public int getCurrentSize() {
+        return currentSize;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * PROVISIONING and STAGING instances.
+     */
+    public int getProvisioning() {
+        return provisioning;
+    }
+
+    /**
+     * STOPPING, STOPPED, SUSPENDING, SUSPENDED and TERMINATED instances.
+     */
+    public int getStopped() {
+        return stopped;
+    }
+
+    /**
+     * Instances being created or recreated by the group manager.
+     */
+    public int getCreating() {
+        return creating;
+    }
+
+    /**
+     * Instances being deleted or abandoned by the group manager.
+     */
+    public int getDeleting() {
+        return deleting;
+    }
+
+    public boolean isStable() {
+        return currentSize == targetSize && creating == 0 && deleting == 0;
+    }
+
+    @Override
+    public String toString() {
+        return group.name + " target " + targetSize + " current " + currentSize + " running " + running
+                + " provisioning " + provisioning + " stopped " + stopped;
+    }
+}
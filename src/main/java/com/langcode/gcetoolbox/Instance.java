@@ -3,6 +3,7 @@ package com.langcode.gcetoolbox;
 import com.google.common.base.Splitter;
 
 import java.util.List;
+import java.util.Objects;
 
 public class Instance {
 
@@ -41,6 +42,11 @@ public class Instance {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(project, zone, name);
+    }
+
     public String getProject() {
         return project;
     }
@@ -2,74 +2,190 @@ package com.langcode.gcetoolbox;
 
 import com.google.api.services.compute.model.AccessConfig;
 import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
 import com.google.api.services.compute.model.NetworkInterface;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import javax.annotation.Nullable;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Detail of an instance, fields are decoded from the raw api response on first use.
+ */
 public class InstanceDetail {
 
-    final long id;
-    final String privateIP;
-    final String publicIP;
-    final long createTime;
-    final String status;
+    // 2017-09-05T23:01:07.989-07:00
+    private final static DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
 
-    InstanceDetail(Instance data) {
-        id = data.getId().longValue();
-        createTime = parseTimestamp(data.getCreationTimestamp());
-        NetworkInterface networkInterface = data.getNetworkInterfaces().get(0);
-        privateIP = networkInterface.getNetworkIP();
-        List<AccessConfig> accessConfigList = networkInterface.getAccessConfigs();
-        if ( accessConfigList != null && ! accessConfigList.isEmpty() ) {
-            publicIP = accessConfigList.get(0).getNatIP();
-        } else {
-            publicIP = "";
-        }
-        status = data.getStatus();
+    private final Instance data;
+
+    // decoded lazily, racing threads may decode twice but always get the same value
+    private volatile List<String> privateIPs = null;
+    private volatile List<String> publicIPs = null;
+    private volatile Map<String, String> metadata = null;
+    private volatile Map<String, String> labels = null;
+    private volatile long createTime = -1;
 
-        data.getMetadata().forEach((k, v)->{
-            System.out.println(k + ":" + v);
-        });
+    InstanceDetail(Instance data) {
+        this.data = data;
     }
 
-    long parseTimestamp(String ts) {
-        // 2017-09-05T23:01:07.989-07:00
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    static long parseTimestamp(@Nullable String ts) {
+        if (ts == null) {
+            return 0;
+        }
         try {
-            return format.parse(ts).getTime();
-        } catch (ParseException ex) {
+            return OffsetDateTime.parse(ts, TIMESTAMP_FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
             return 0;
         }
     }
 
+    private static String lastPart(@Nullable String url) {
+        if (url == null) {
+            return "";
+        }
+        List<String> parts = Splitter.on('/').splitToList(url);
+        return parts.get(parts.size() - 1);
+    }
+
     public long getId() {
-        return id;
+        return data.getId() == null ? 0 : data.getId().longValue();
     }
 
+    public String getName() {
+        return data.getName();
+    }
+
+    public String getZone() {
+        return lastPart(data.getZone());
+    }
+
+    public String getMachineType() {
+        return lastPart(data.getMachineType());
+    }
+
+    /**
+     * @return private IP of first network interface
+     */
     public String getPrivateIP() {
-        return privateIP;
+        List<String> ips = getPrivateIPs();
+        return ips.isEmpty() ? "" : ips.get(0);
     }
 
+    /**
+     * @return public IP of first network interface, empty if it has none
+     */
     public String getPublicIP() {
-        return publicIP;
+        List<String> ips = getPublicIPs();
+        return ips.isEmpty() ? "" : ips.get(0);
+    }
+
+    /**
+     * @return private IP of each network interface, in interface order
+     */
+    public List<String> getPrivateIPs() {
+        List<String> result = privateIPs;
+        if (result == null) {
+            decodeNetworkInterfaces();
+            result = privateIPs;
+        }
+        return result;
+    }
+
+    /**
+     * @return public IP of each network interface, empty string for interfaces without one
+     */
+    public List<String> getPublicIPs() {
+        List<String> result = publicIPs;
+        if (result == null) {
+            decodeNetworkInterfaces();
+            result = publicIPs;
+        }
+        return result;
+    }
+
+    private void decodeNetworkInterfaces() {
+        ImmutableList.Builder<String> privateList = ImmutableList.builder();
+        ImmutableList.Builder<String> publicList = ImmutableList.builder();
+        List<NetworkInterface> interfaces = data.getNetworkInterfaces();
+        if (interfaces != null) {
+            for (NetworkInterface networkInterface : interfaces) {
+                String ip = networkInterface.getNetworkIP();
+                privateList.add(ip == null ? "" : ip);
+
+                String natIP = null;
+                List<AccessConfig> accessConfigList = networkInterface.getAccessConfigs();
+                if (accessConfigList != null && !accessConfigList.isEmpty()) {
+                    natIP = accessConfigList.get(0).getNatIP();
+                }
+                publicList.add(natIP == null ? "" : natIP);
+            }
+        }
+        publicIPs = publicList.build();
+        privateIPs = privateList.build();
+    }
+
+    public Map<String, String> getLabels() {
+        Map<String, String> result = labels;
+        if (result == null) {
+            result = data.getLabels() == null ? Collections.emptyMap() : ImmutableMap.copyOf(data.getLabels());
+            labels = result;
+        }
+        return result;
+    }
+
+    /**
+     * Custom metadata of instance, same as instance/attributes/ seen by the instance itself.
+     */
+    public Map<String, String> getMetadata() {
+        Map<String, String> result = metadata;
+        if (result == null) {
+            ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            Metadata meta = data.getMetadata();
+            if (meta != null && meta.getItems() != null) {
+                for (Metadata.Items item : meta.getItems()) {
+                    if (item.getKey() != null && item.getValue() != null) {
+                        builder.put(item.getKey(), item.getValue());
+                    }
+                }
+            }
+            result = builder.build();
+            metadata = result;
+        }
+        return result;
+    }
+
+    @Nullable
+    public String getMetadata(String key) {
+        return getMetadata().get(key);
     }
 
     public boolean isRunning() {
-        return status.equals("RUNNING");
+        return "RUNNING".equals(data.getStatus());
     }
 
     public boolean isStopped() {
-        return status.equals("TERMINATED");
+        return "TERMINATED".equals(data.getStatus());
     }
 
     public String getStatus() {
-        return status;
+        return data.getStatus();
     }
 
     public long getCreateTimestamp() {
-        return createTime;
+        long result = createTime;
+        if (result < 0) {
+            result = parseTimestamp(data.getCreationTimestamp());
+            createTime = result;
+        }
+        return result;
     }
 }
-
@@ -0,0 +1,205 @@
+package com.langcode.gcetoolbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Watch preemption and host maintenance notice with metadata server long poll.
+ * <p>
+ * Each watched path holds one idle keep-alive connection which metadata server answers as soon as the
+ * value changes, so listeners are notified well within the ~30 seconds warning.
+ */
+public class MetadataEventWatcher {
+
+    private final static Logger LOG = LoggerFactory.getLogger(MetadataEventWatcher.class);
+
+    private final static int LONG_POLL_TIMEOUT_SEC = 300;
+    private final static long RETRY_INTERVAL_MS = 1000;
+
+    public enum Event {
+        PREEMPTED,
+        MIGRATE_ON_HOST_MAINTENANCE,
+        TERMINATE_ON_HOST_MAINTENANCE
+    }
+
+    private final String baseUrl;
+    private final ConcurrentHashMap<String, Consumer<Event>> listeners = new ConcurrentHashMap<>();
+    private final ArrayList<Poller> pollers = new ArrayList<>();
+
+    public MetadataEventWatcher() {
+        this(EnvDetector.metadataBaseUrl());
+    }
+
+    /**
+     * @param baseUrl metadata url prefix ending with "/", e.g. http://127.0.0.1:8080/computeMetadata/v1/
+     */
+    public MetadataEventWatcher(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public String onEvent(Consumer<Event> callback) {
+        String uuid = UUID.randomUUID().toString();
+        listeners.put(uuid, callback);
+        return uuid;
+    }
+
+    public void removeEventListener(String listenerId) {
+        listeners.remove(listenerId);
+    }
+
+    public synchronized void start() {
+        if (!pollers.isEmpty()) {
+            LOG.warn("metadata event watcher already started");
+            return;
+        }
+        pollers.add(new Poller("instance/preempted"));
+        pollers.add(new Poller("instance/maintenance-event"));
+        pollers.forEach(Poller::start);
+    }
+
+    public synchronized void stop() {
+        pollers.forEach(Poller::shutdown);
+        pollers.clear();
+    }
+
+    @Nullable
+    static Event toEvent(String metaPath, String value) {
+        if (metaPath.endsWith("preempted")) {
+            return "TRUE".equals(value) ? Event.PREEMPTED : null;
+        }
+        switch (value) {
+            case "MIGRATE_ON_HOST_MAINTENANCE":
+                return Event.MIGRATE_ON_HOST_MAINTENANCE;
+            case "TERMINATE_ON_HOST_MAINTENANCE":
+                return Event.TERMINATE_ON_HOST_MAINTENANCE;
+            default:
+                return null;
+        }
+    }
+
+    private void fire(Event event) {
+        listeners.forEach((k, v) -> {
+            try {
+                v.accept(event);
+            } catch (Exception ex) {
+                LOG.error("metadata event listener got exception", ex);
+            }
+        });
+    }
+
+    private class Poller extends Thread {
+
+        private final String metaPath;
+        private volatile boolean running = true;
+        private volatile HttpURLConnection conn = null;
+        private boolean waitForChange = false;
+        private String etag = null;
+        private String value = null;
+
+        Poller(String metaPath) {
+            super("metadata watch " + metaPath);
+            setDaemon(true);
+            this.metaPath = metaPath;
+        }
+
+        void shutdown() {
+            running = false;
+            HttpURLConnection current = conn;
+            if (current != null) {
+                current.disconnect();
+            }
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    String newValue = poll();
+                    if (newValue == null || newValue.equals(value)) {
+                        continue;
+                    }
+                    value = newValue;
+                    Event event = toEvent(metaPath, newValue);
+                    if (event != null) {
+                        LOG.info("got metadata event {}", event);
+                        fire(event);
+                    }
+                } catch (UnknownHostException ex) {
+                    LOG.warn("Not in google cloud, stop watching {}", metaPath);
+                    return;
+                } catch (IOException | RuntimeException ex) {
+                    // disconnect from shutdown may surface as either
+                    if (!running) {
+                        return;
+                    }
+                    LOG.error("watch {} failed", metaPath, ex);
+                    // value may have changed meanwhile, read current value again
+                    waitForChange = false;
+                    try {
+                        Thread.sleep(RETRY_INTERVAL_MS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * First request returns current value right away, following requests block until value changes.
+         *
+         * @return value, or null if long poll timed out without change
+         */
+        @Nullable
+        private String poll() throws IOException {
+            String url = baseUrl + metaPath;
+            if (waitForChange) {
+                url += "?wait_for_change=true&timeout_sec=" + LONG_POLL_TIMEOUT_SEC;
+                if (etag != null) {
+                    url += "&last_etag=" + etag;
+                }
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            conn = connection;
+            connection.addRequestProperty("Metadata-Flavor", "Google");
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout((LONG_POLL_TIMEOUT_SEC + 10) * 1000);
+
+            int code = connection.getResponseCode();
+            if (code != 200) {
+                // close the error body so the connection can be reused
+                if (connection.getErrorStream() != null) {
+                    connection.getErrorStream().close();
+                }
+                throw new IOException("watch " + metaPath + " response code " + code);
+            }
+
+            String newEtag = connection.getHeaderField("ETag");
+            StringBuilder body = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    body.append(line.trim());
+                }
+            }
+
+            boolean unchanged = waitForChange && newEtag != null && newEtag.equals(etag);
+            waitForChange = true;
+            etag = newEtag;
+            return unchanged ? null : body.toString();
+        }
+    }
+}
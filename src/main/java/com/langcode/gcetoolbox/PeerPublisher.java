@@ -0,0 +1,265 @@
+package com.langcode.gcetoolbox;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Export peer list of this instance to local consumers such as sidecars, so only one process per VM needs
+ * to talk to the Compute API.
+ * <p>
+ * Peers are written to a file (replaced atomically) and/or served by a small HTTP endpoint on localhost
+ * with ETag support, in json or nginx upstream format. Output is rendered again on its own thread after
+ * every refresh of {@link EnvDetector}, so peers which become RUNNING later are picked up too, and only
+ * written when content changes. Enable auto refresh of the detector to follow changes.
+ */
+public class PeerPublisher {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PeerPublisher.class);
+
+    public enum Format {
+        JSON,
+        NGINX_UPSTREAM
+    }
+
+    private final static class Published {
+        final byte[] json;
+        final byte[] upstream;
+        final String jsonEtag;
+        final String upstreamEtag;
+
+        Published(byte[] json, byte[] upstream) {
+            this.json = json;
+            this.upstream = upstream;
+            this.jsonEtag = etag(json);
+            this.upstreamEtag = etag(upstream);
+        }
+
+        private static String etag(byte[] content) {
+            return "\"" + Hashing.murmur3_128().hashBytes(content) + "\"";
+        }
+    }
+
+    private final EnvDetector detector;
+    private final String upstreamName;
+    private final int upstreamPort;
+
+    private Path file = null;
+    private Format fileFormat = Format.JSON;
+    private HttpServer server = null;
+    private String listenerId = null;
+    private String refreshListenerId = null;
+    private volatile ExecutorService executor = null;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+    private volatile Published published = null;
+
+    /**
+     * @param upstreamName name of nginx upstream block
+     * @param upstreamPort port of peers used in nginx upstream servers
+     */
+    public PeerPublisher(EnvDetector detector, String upstreamName, int upstreamPort) {
+        this.detector = detector;
+        this.upstreamName = upstreamName;
+        this.upstreamPort = upstreamPort;
+    }
+
+    /**
+     * Write peers to file whenever membership changes, call before {@link #start()}.
+     */
+    public synchronized void publishToFile(Path file, Format format) {
+        this.file = file;
+        this.fileFormat = format;
+    }
+
+    /**
+     * Serve peers on http://127.0.0.1:port/peers, append ?format=nginx for upstream format.
+     * Port 0 picks a free port, see {@link #getHttpPort()}.
+     */
+    public synchronized void serveHttp(int port) throws IOException {
+        if (server != null) {
+            LOG.warn("peer http endpoint already started");
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/peers", this::handle);
+        server.start();
+    }
+
+    public synchronized int getHttpPort() {
+        return server == null ? 0 : server.getAddress().getPort();
+    }
+
+    public synchronized void start() {
+        if (listenerId != null) {
+            LOG.warn("peer publisher already started");
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("peer publisher").setDaemon(true).build());
+        // listeners are called by detector, rendering calls the Compute API so it is done on own thread
+        listenerId = detector.onPeersChanged(peers -> schedulePublish());
+        refreshListenerId = detector.onRefreshed(this::schedulePublish);
+    }
+
+    public synchronized void stop() {
+        if (listenerId != null) {
+            detector.removePeersChangeListener(listenerId);
+            detector.removeRefreshListener(refreshListenerId);
+            listenerId = null;
+            refreshListenerId = null;
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Not synchronized, detector listeners must not wait for a running publish.
+     */
+    private void schedulePublish() {
+        ExecutorService current = executor;
+        // one pending publish is enough, it renders the latest peers
+        if (current != null && queued.compareAndSet(false, true)) {
+            try {
+                current.submit(() -> {
+                    queued.set(false);
+                    publish();
+                });
+            } catch (RejectedExecutionException ex) {
+                // stopped
+                queued.set(false);
+            }
+        }
+    }
+
+    private synchronized void publish() {
+        try {
+            Map<Instance, InstanceDetail> details = detector.getPeerDetails();
+            Published current = new Published(renderJson(details), renderUpstream(details));
+
+            Published prev = published;
+            if (prev != null && prev.jsonEtag.equals(current.jsonEtag)) {
+                return;
+            }
+            published = current;
+
+            if (file != null) {
+                writeAtomically(file, fileFormat == Format.JSON ? current.json : current.upstream);
+            }
+            LOG.info("published {} peers", details.size());
+        } catch (Exception ex) {
+            LOG.error("publish peers failed", ex);
+        }
+    }
+
+    byte[] renderJson(Map<Instance, InstanceDetail> details) throws IOException {
+        ArrayList<GenericJson> peers = new ArrayList<>();
+        details.forEach((instance, detail) -> {
+            GenericJson peer = new GenericJson();
+            peer.put("name", instance.name);
+            peer.put("zone", instance.zone);
+            peer.put("privateIP", detail.getPrivateIP());
+            peer.put("status", detail.getStatus());
+            peers.add(peer);
+        });
+
+        GenericJson json = new GenericJson();
+        json.put("group", detector.getUsedByGroup());
+        json.put("peers", peers);
+        return JacksonFactory.getDefaultInstance().toPrettyString(json).getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] renderUpstream(Map<Instance, InstanceDetail> details) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("upstream ").append(upstreamName).append(" {\n");
+        details.forEach((instance, detail) -> {
+            if (detail.isRunning() && !detail.getPrivateIP().isEmpty()) {
+                sb.append("    server ").append(detail.getPrivateIP()).append(':').append(upstreamPort)
+                        .append("; # ").append(instance.name).append('\n');
+            }
+        });
+        sb.append("}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write to a temp file in the same directory then rename, readers never see a partial file.
+     */
+    static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, content);
+            // temp files are private, sidecars may run as another user
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException ex) {
+                LOG.debug("file system has no posix permissions");
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Published current = published;
+            if (current == null) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            String query = exchange.getRequestURI().getQuery();
+            boolean upstream = query != null && Arrays.asList(query.split("&")).contains("format=nginx");
+            byte[] body = upstream ? current.upstream : current.json;
+            String etag = upstream ? current.upstreamEtag : current.jsonEtag;
+
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (etag.equals(ifNoneMatch(exchange))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", upstream ? "text/plain" : "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Nullable
+    private static String ifNoneMatch(HttpExchange exchange) {
+        List<String> values = exchange.getRequestHeaders().get("If-None-Match");
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
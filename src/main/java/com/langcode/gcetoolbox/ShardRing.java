@@ -0,0 +1,170 @@
+package com.langcode.gcetoolbox;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Consistent-hash ring over group peers. Every peer owns a number of virtual nodes on the ring, so when
+ * the group is resized only about 1/N of the keys move to another owner.
+ * <p>
+ * The ring is rebuilt on {@link #update(Collection)} and published with a single volatile write, lookups
+ * are a binary search over a primitive array and do not allocate.
+ */
+public class ShardRing implements AutoCloseable {
+
+    public final static int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final static Ring EMPTY = new Ring(new long[0], new Instance[0], 0);
+
+    private final static class Ring {
+        final long[] points;
+        final Instance[] owners;
+        final int members;
+
+        Ring(long[] points, Instance[] owners, int members) {
+            this.points = points;
+            this.owners = owners;
+            this.members = members;
+        }
+    }
+
+    private final Instance self;
+    private final int virtualNodes;
+    private volatile Ring ring = EMPTY;
+    private volatile Runnable detach = null;
+
+    public ShardRing(@Nullable Instance self) {
+        this(self, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardRing(@Nullable Instance self, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtual nodes must be positive");
+        }
+        this.self = self;
+        this.virtualNodes = virtualNodes;
+    }
+
+    public void update(Collection<Instance> peers) {
+        LinkedHashSet<Instance> members = new LinkedHashSet<>(peers);
+
+        int total = members.size() * virtualNodes;
+        long[] hashes = new long[total];
+        Instance[] nodeOwners = new Instance[total];
+        Integer[] order = new Integer[total];
+
+        int pos = 0;
+        for (Instance member : members) {
+            String base = member.getVmURL() + "#";
+            for (int i = 0; i < virtualNodes; i++) {
+                hashes[pos] = hash(base + i);
+                nodeOwners[pos] = member;
+                order[pos] = pos;
+                pos++;
+            }
+        }
+
+        // ties are practically impossible, still break them by url so every peer builds the same ring
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Long.compare(hashes[a], hashes[b]);
+            return cmp != 0 ? cmp : nodeOwners[a].getVmURL().compareTo(nodeOwners[b].getVmURL());
+        });
+
+        long[] points = new long[total];
+        Instance[] owners = new Instance[total];
+        for (int i = 0; i < total; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = nodeOwners[order[i]];
+        }
+
+        ring = new Ring(points, owners, members.size());
+    }
+
+    /**
+     * @return owner of key, or null if ring has no member yet
+     */
+    @Nullable
+    public Instance ownerOf(CharSequence key) {
+        return ownerOf(hash(key));
+    }
+
+    @Nullable
+    public Instance ownerOf(long keyHash) {
+        return lookup(ring, keyHash);
+    }
+
+    /**
+     * An empty ring means we are not part of any group, so every key belongs to us.
+     */
+    public boolean isMine(CharSequence key) {
+        Ring current = ring;
+        if (current.points.length == 0) {
+            return true;
+        }
+        Instance owner = lookup(current, hash(key));
+        return owner.equals(self);
+    }
+
+    @Nullable
+    private static Instance lookup(Ring current, long keyHash) {
+        long[] points = current.points;
+        if (points.length == 0) {
+            return null;
+        }
+        int idx = Arrays.binarySearch(points, keyHash);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        if (idx == points.length) {
+            idx = 0;
+        }
+        return current.owners[idx];
+    }
+
+    /**
+     * Called by {@link #close()}, e.g. to stop following peers of a detector.
+     */
+    void setDetach(Runnable detach) {
+        this.detach = detach;
+    }
+
+    /**
+     * Stop following peers, the ring keeps its last members.
+     */
+    @Override
+    public void close() {
+        Runnable current = detach;
+        detach = null;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    public int getNumberOfMembers() {
+        return ring.members;
+    }
+
+    @Nullable
+    public Instance getSelf() {
+        return self;
+    }
+
+    /**
+     * FNV-1a over chars followed by murmur3 finalizer, works on CharSequence directly to avoid encoding.
+     */
+    static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, len = key.length(); i < len; i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,201 @@
+package com.langcode.gcetoolbox;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Project wide cache of regions, zones and instance groups with indexed lookups.
+ * <p>
+ * Everything is loaded in parallel with a few list / aggregatedList scans and published as one immutable
+ * snapshot, lookups never hit the API after first load. Topology rarely changes, so refresh interval
+ * can be long.
+ */
+public class Topology {
+
+    private final static Logger LOG = LoggerFactory.getLogger(Topology.class);
+
+    private final static class Snapshot {
+        final ImmutableMap<String, Zone> zones;
+        final ImmutableListMultimap<String, Zone> zonesByRegion;
+        final ImmutableList<Group> groups;
+        final ImmutableMap<String, Group> groupsByKey;
+        final ImmutableListMultimap<String, Group> groupsByZone;
+        final ImmutableListMultimap<String, Group> groupsByName;
+        final long loadTime;
+
+        Snapshot(ImmutableMap<String, Zone> zones, ImmutableListMultimap<String, Zone> zonesByRegion,
+                 ImmutableList<Group> groups, ImmutableMap<String, Group> groupsByKey,
+                 ImmutableListMultimap<String, Group> groupsByZone, ImmutableListMultimap<String, Group> groupsByName) {
+            this.zones = zones;
+            this.zonesByRegion = zonesByRegion;
+            this.groups = groups;
+            this.groupsByKey = groupsByKey;
+            this.groupsByZone = groupsByZone;
+            this.groupsByName = groupsByName;
+            this.loadTime = System.currentTimeMillis();
+        }
+    }
+
+    private final EnvDetector detector;
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("topology load %d").setDaemon(true).build());
+
+    private volatile Snapshot snapshot = null;
+    private Timer timer = null;
+
+    public Topology(EnvDetector detector) {
+        this.detector = detector;
+    }
+
+    /**
+     * Reload whole topology, readers keep seeing previous snapshot until it is done.
+     */
+    public synchronized void refresh() throws IOException {
+        Future<List<Zone>> zonesFuture = executor.submit(detector::getAllZones);
+        Future<List<Group>> groupsFuture = executor.submit(detector::listAllGroups);
+
+        List<Zone> zones = await(zonesFuture);
+        List<Group> groups = await(groupsFuture);
+
+        ImmutableMap.Builder<String, Zone> zoneMap = ImmutableMap.builder();
+        ImmutableListMultimap.Builder<String, Zone> zonesByRegion = ImmutableListMultimap.builder();
+        for (Zone zone : zones) {
+            zoneMap.put(zone.getName(), zone);
+            zonesByRegion.put(zone.getRegion(), zone);
+        }
+
+        ImmutableMap.Builder<String, Group> groupsByKey = ImmutableMap.builder();
+        ImmutableListMultimap.Builder<String, Group> groupsByZone = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<String, Group> groupsByName = ImmutableListMultimap.builder();
+        for (Group group : groups) {
+            groupsByKey.put(groupKey(group.zone, group.name), group);
+            groupsByZone.put(group.zone, group);
+            groupsByName.put(group.name, group);
+        }
+
+        snapshot = new Snapshot(zoneMap.build(), zonesByRegion.build(), ImmutableList.copyOf(groups),
+                groupsByKey.build(), groupsByZone.build(), groupsByName.build());
+        LOG.debug("topology loaded, {} zones {} groups", zones.size(), groups.size());
+    }
+
+    public synchronized void enableAutoRefresh(long interval, TimeUnit timeUnit) {
+        if (timer != null) {
+            LOG.warn("topology auto refresh already enabled");
+            return;
+        }
+
+        timer = new Timer("topology refresh timer", true);
+        long period = timeUnit.toMillis(interval);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception ex) {
+                    LOG.error("Refresh topology failed.", ex);
+                }
+            }
+        }, period, period);
+    }
+
+    public synchronized void disableAutoRefresh() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * @return time of last successful load in millis, 0 if never loaded
+     */
+    public long getLoadTime() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.loadTime;
+    }
+
+    public Collection<Zone> getAllZones() throws IOException {
+        return current().zones.values();
+    }
+
+    @Nullable
+    public Zone getZone(String zone) throws IOException {
+        return current().zones.get(zone);
+    }
+
+    public Set<String> getAllRegions() throws IOException {
+        return current().zonesByRegion.keySet();
+    }
+
+    public List<Zone> getZonesOfRegion(String region) throws IOException {
+        return current().zonesByRegion.get(region);
+    }
+
+    public List<Group> getAllGroups() throws IOException {
+        return current().groups;
+    }
+
+    @Nullable
+    public Group getGroup(String zone, String name) throws IOException {
+        return current().groupsByKey.get(groupKey(zone, name));
+    }
+
+    /**
+     * Group names are only unique within a zone, so this may return groups of several zones.
+     */
+    public List<Group> getGroupsByName(String name) throws IOException {
+        return current().groupsByName.get(name);
+    }
+
+    public List<Group> getGroupsOfZone(String zone) throws IOException {
+        return current().groupsByZone.get(zone);
+    }
+
+    public List<Group> getGroupsOfRegion(String region) throws IOException {
+        Snapshot current = current();
+        ImmutableList.Builder<Group> result = ImmutableList.builder();
+        for (Zone zone : current.zonesByRegion.get(region)) {
+            result.addAll(current.groupsByZone.get(zone.getName()));
+        }
+        return result.build();
+    }
+
+    private static String groupKey(String zone, String name) {
+        return zone + "/" + name;
+    }
+
+    private Snapshot current() throws IOException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    refresh();
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("load topology interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("load topology failed", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.langcode.gcetoolbox;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of pre-created and stopped instances of one template in one zone.
+ * <p>
+ * Starting a stopped instance is much faster than creating one, so {@link #acquire()} takes a ready
+ * instance from memory and starts it, while the pool is replenished in background. Pool instances carry
+ * a label with template name, so a restarted pool picks up stopped instances created before. The label is
+ * removed before an instance is handed out, so no pool ever takes back an instance in use.
+ */
+public class WarmPool {
+
+    private final static Logger LOG = LoggerFactory.getLogger(WarmPool.class);
+
+    final static String POOL_LABEL = "gcetoolbox-warm-pool";
+
+    // instance names are limited to 63 chars, "-warm-" and 8 random chars are appended
+    private final static int MAX_NAME_PREFIX = 63 - 6 - 8;
+
+    private final EnvDetector detector;
+    private final String template;
+    private final String namePrefix;
+    private final String zone;
+    private final int size;
+
+    private final ConcurrentLinkedDeque<Instance> ready = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("warm pool %d").setDaemon(true).build());
+
+    private volatile long statusPollMillis = 2000;
+    private volatile long statusTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private Timer timer = null;
+
+    public WarmPool(EnvDetector detector, String template, String zone, int size) {
+        this.detector = detector;
+        this.template = template;
+        this.namePrefix = template.length() > MAX_NAME_PREFIX ? template.substring(0, MAX_NAME_PREFIX) : template;
+        this.zone = zone;
+        this.size = size;
+    }
+
+    /**
+     * How often instance status is checked while it is being created or stopped, and how long to wait.
+     */
+    public void setStatusPolling(long interval, long timeout, TimeUnit timeUnit) {
+        statusPollMillis = timeUnit.toMillis(interval);
+        statusTimeoutMillis = timeUnit.toMillis(timeout);
+    }
+
+    /**
+     * Pick up existing stopped pool instances and fill the pool, pool is checked again every interval.
+     * Labelled instances which are not stopped may be provisioned by another live pool and are left alone,
+     * unless they are older than a provision could take, then they are leftovers of a dead pool and deleted.
+     */
+    public synchronized void start(long interval, TimeUnit timeUnit) throws IOException {
+        if (timer != null) {
+            LOG.warn("warm pool already started");
+            return;
+        }
+
+        Map<Instance, InstanceDetail> existing =
+                detector.getInstancesWithLabel(detector.getProjectId(), zone, POOL_LABEL, template);
+        // waiting for running then for stopped, each up to status timeout
+        long staleBefore = System.currentTimeMillis() - 2 * statusTimeoutMillis;
+        existing.forEach((instance, detail) -> {
+            if (detail.isStopped()) {
+                ready.add(instance);
+            } else if (detail.getCreateTimestamp() < staleBefore) {
+                LOG.warn("warm pool instance {} is {} since {}, delete it", instance.name, detail.getStatus(),
+                        detail.getCreateTimestamp());
+                discard(instance);
+            } else {
+                LOG.debug("warm pool instance {} is {}, not picked up", instance.name, detail.getStatus());
+            }
+        });
+        LOG.info("warm pool {}/{} found {} stopped instances", template, zone, ready.size());
+
+        replenish();
+
+        timer = new Timer("warm pool timer", true);
+        long period = timeUnit.toMillis(interval);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                replenish();
+            }
+        }, period, period);
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Take a ready instance out of pool and start it, the pool is replenished in background. Instances deleted
+     * or changed outside of pool are dropped instead of being tried again.
+     *
+     * @return started instance, or null if pool is empty and caller should create capacity another way
+     */
+    @Nullable
+    public Instance acquire() throws IOException {
+        Instance instance;
+        while ((instance = ready.poll()) != null) {
+            // take it out of pool on the API first, so a pool started later never stops it while in use
+            try {
+                if (!detector.removeLabelOfStopped(instance, POOL_LABEL, template)) {
+                    LOG.warn("warm pool instance {} changed outside of pool, dropped", instance.name);
+                    continue;
+                }
+            } catch (IOException ex) {
+                if (isGoneOrChanged(ex)) {
+                    LOG.warn("warm pool instance {} deleted or changed outside of pool, dropped", instance.name);
+                    continue;
+                }
+                ready.addLast(instance);
+                throw ex;
+            }
+
+            try {
+                detector.startInstance(instance);
+            } catch (IOException ex) {
+                if (isGoneOrChanged(ex)) {
+                    LOG.warn("warm pool instance {} deleted outside of pool, dropped", instance.name);
+                    continue;
+                }
+                try {
+                    detector.setLabel(instance, POOL_LABEL, template);
+                } catch (IOException labelEx) {
+                    LOG.error("restore pool label of {} failed", instance.name, labelEx);
+                }
+                ready.addLast(instance);
+                throw ex;
+            }
+
+            replenish();
+            return instance;
+        }
+
+        replenish();
+        return null;
+    }
+
+    /**
+     * Instance deleted, or its labels changed by someone else, trying it again would fail the same way.
+     */
+    private static boolean isGoneOrChanged(IOException ex) {
+        if (!(ex instanceof HttpResponseException)) {
+            return false;
+        }
+        int code = ((HttpResponseException) ex).getStatusCode();
+        return code == 404 || code == 412;
+    }
+
+    public int getReadyCount() {
+        return ready.size();
+    }
+
+    /**
+     * Instances being created or stopped for pool.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public synchronized void replenish() {
+        if (executor.isShutdown()) {
+            return;
+        }
+        while (ready.size() + pending.get() < size) {
+            pending.incrementAndGet();
+            executor.submit(this::provision);
+        }
+    }
+
+    private void provision() {
+        String name = namePrefix + "-warm-" + UUID.randomUUID().toString().substring(0, 8);
+        Instance instance = new Instance(detector.getProjectId(), zone, name);
+        try {
+            detector.createInstance(instance, template, null, Collections.singletonMap(POOL_LABEL, template));
+        } catch (Exception ex) {
+            LOG.error("create warm pool instance {} failed", name, ex);
+            pending.decrementAndGet();
+            return;
+        }
+
+        try {
+            if (!waitForStatus(instance, "RUNNING")) {
+                LOG.error("warm pool instance {} not running in time, delete it", name);
+                discard(instance);
+                pending.decrementAndGet();
+                return;
+            }
+        } catch (InterruptedException ex) {
+            // pool is stopping, do not leave a running instance behind, clear interrupt for the delete call
+            Thread.interrupted();
+            discard(instance);
+            Thread.currentThread().interrupt();
+            pending.decrementAndGet();
+            return;
+        }
+        stopIntoPool(instance);
+    }
+
+    private void stopIntoPool(Instance instance) {
+        try {
+            detector.stopInstance(instance);
+            if (waitForStatus(instance, "TERMINATED")) {
+                ready.add(instance);
+                LOG.debug("warm pool instance {} ready", instance.name);
+            } else {
+                LOG.error("warm pool instance {} not stopped in time, delete it", instance.name);
+                discard(instance);
+            }
+        } catch (InterruptedException ex) {
+            // pool is stopping, stop is already requested so the instance is picked up by next start
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            LOG.error("stop warm pool instance {} failed, delete it", instance.name, ex);
+            discard(instance);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Delete an instance which can not join the pool, otherwise every replenish would leak one more.
+     */
+    private void discard(Instance instance) {
+        try {
+            detector.deleteInstance(instance);
+        } catch (IOException ex) {
+            LOG.error("delete warm pool instance {} failed", instance.name, ex);
+        }
+    }
+
+    private boolean waitForStatus(Instance instance, String status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + statusTimeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (status.equals(detector.getInstanceDetail(instance).getStatus())) {
+                    return true;
+                }
+            } catch (IOException | GceToolBoxError ex) {
+                // instance may not be visible right after insert
+                LOG.debug("get status of {} failed", instance.name, ex);
+            }
+            Thread.sleep(statusPollMillis);
+        }
+        return false;
+    }
+}
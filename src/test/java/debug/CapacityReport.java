@@ -0,0 +1,25 @@
+package debug;
+
+import com.langcode.gcetoolbox.CapacityPlanner;
+import com.langcode.gcetoolbox.EnvDetector;
+import com.langcode.gcetoolbox.GceToolBoxError;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+public class CapacityReport {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CapacityReport.class);
+
+    @Test
+    public void reportCapacity() throws IOException, GceToolBoxError {
+        EnvDetector detector = EnvDetector.getInstance();
+        detector.detect();
+
+        long start = System.currentTimeMillis();
+        new CapacityPlanner(detector).streamCapacityReport(capacity -> LOG.info("{}", capacity));
+        LOG.info("capacity report took {} ms", System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,167 @@
+package debug;
+
+import com.langcode.gcetoolbox.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class DrainCoordinatorTest {
+
+    private SimulatedCompute sim;
+    private Group group;
+    private Instance self;
+    private MetadataStub stub;
+    private EnvDetector detector;
+
+    @Before
+    public void setUp() throws Exception {
+        sim = new SimulatedCompute("sim-project");
+        sim.addZone("us-central1-a", "us-central1");
+        sim.addTemplate("worker", "n1-standard-1");
+        group = sim.addGroup("us-central1-a", "workers", "worker", 3);
+        self = sim.getInstancesOfGroup(group).get(0);
+        stub = sim.newMetadataStub(self).start();
+        detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+        detector.detect();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 3000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private boolean labelledDraining() {
+        try {
+            return "true".equals(detector.getInstanceDetail(self).getLabels().get("gcetoolbox-draining"));
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    @Test
+    public void preemptDrainsAndStops() throws Exception {
+        DrainCoordinator coordinator = new DrainCoordinator(detector);
+        coordinator.setDeadline(300, TimeUnit.MILLISECONDS);
+        coordinator.setFinalAction(DrainCoordinator.FinalAction.STOP);
+
+        AtomicBoolean fastHookRan = new AtomicBoolean(false);
+        AtomicBoolean labelSeenByHook = new AtomicBoolean(false);
+        CountDownLatch slowHookCancelled = new CountDownLatch(1);
+        coordinator.addShutdownHook(() -> {
+            labelSeenByHook.set(labelledDraining());
+            fastHookRan.set(true);
+        });
+        coordinator.addShutdownHook(() -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException ex) {
+                slowHookCancelled.countDown();
+            }
+        });
+
+        MetadataEventWatcher watcher = new MetadataEventWatcher(stub.getBaseUrl());
+        coordinator.watch(watcher);
+        try {
+            // let pollers park on long poll before the notice
+            Thread.sleep(200);
+            assertFalse(coordinator.isDraining());
+
+            stub.preempt();
+            waitUntil(() -> "TERMINATED".equals(sim.getStatus(self)));
+        } finally {
+            watcher.stop();
+        }
+
+        assertTrue(coordinator.isDraining());
+        assertTrue(fastHookRan.get());
+        assertTrue(labelSeenByHook.get());
+        assertTrue(slowHookCancelled.await(1, TimeUnit.SECONDS));
+        assertEquals(3, sim.getInstancesOfGroup(group).size());
+    }
+
+    @Test
+    public void drainRemovesFromGroup() throws Exception {
+        DrainCoordinator coordinator = new DrainCoordinator(detector);
+        coordinator.setFinalAction(DrainCoordinator.FinalAction.REMOVE_FROM_GROUP);
+        AtomicInteger hookRuns = new AtomicInteger();
+        coordinator.addShutdownHook(hookRuns::incrementAndGet);
+
+        assertTrue(coordinator.drain("scale in"));
+        assertFalse(coordinator.drain("scale in again"));
+
+        assertEquals(1, hookRuns.get());
+        assertTrue(coordinator.isDraining());
+        assertFalse(sim.getInstancesOfGroup(group).contains(self));
+        assertEquals(2, sim.getInstancesOfGroup(group).size());
+    }
+
+    @Test
+    public void drainWithoutFinalActionReturnsToService() throws Exception {
+        DrainCoordinator coordinator = new DrainCoordinator(detector);
+        coordinator.setFinalAction(DrainCoordinator.FinalAction.NONE);
+        AtomicBoolean labelSeenByHook = new AtomicBoolean(false);
+        coordinator.addShutdownHook(() -> labelSeenByHook.set(labelledDraining()));
+
+        assertTrue(coordinator.drain("maintenance"));
+        assertTrue(labelSeenByHook.get());
+        assertFalse(labelledDraining());
+        assertFalse(coordinator.isDraining());
+        assertEquals("RUNNING", sim.getStatus(self));
+
+        detector.detect();
+        assertTrue(detector.getPeers().contains(self));
+    }
+
+    @Test
+    public void failedFinalActionCanBeRetried() throws Exception {
+        DrainCoordinator coordinator = new DrainCoordinator(detector);
+        AtomicInteger hookRuns = new AtomicInteger();
+        coordinator.addShutdownHook(hookRuns::incrementAndGet);
+
+        sim.setQuotaErrorRate(1);
+        try {
+            coordinator.drain("scale in");
+            fail("stop should fail");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(coordinator.isDraining());
+
+        sim.setQuotaErrorRate(0);
+        assertTrue(coordinator.drain("retry"));
+        assertEquals(1, hookRuns.get());
+        assertEquals("TERMINATED", sim.getStatus(self));
+    }
+
+    @Test
+    public void notInGceDoesNotStartDrain() throws Exception {
+        EnvDetector undetected = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+        DrainCoordinator coordinator = new DrainCoordinator(undetected);
+        try {
+            coordinator.drain("scale in");
+            fail("should not drain before detect");
+        } catch (NotInGceError ex) {
+            // expected
+        }
+        assertFalse(coordinator.isDraining());
+    }
+}
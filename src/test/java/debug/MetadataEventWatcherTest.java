@@ -0,0 +1,90 @@
+package debug;
+
+import com.langcode.gcetoolbox.MetadataEventWatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class MetadataEventWatcherTest {
+
+    private MetadataStub stub;
+
+    @Before
+    public void startStub() throws IOException {
+        stub = new MetadataStub().start();
+    }
+
+    @After
+    public void stopStub() {
+        stub.close();
+    }
+
+    private String longPoll(String metaPath, int timeoutSec) throws IOException {
+        URL url = new URL(stub.getBaseUrl() + metaPath + "?wait_for_change=true&timeout_sec=" + timeoutSec);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.addRequestProperty("Metadata-Flavor", "Google");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+            return reader.readLine();
+        }
+    }
+
+    @Test
+    public void stubWaitsPerPath() throws Exception {
+        Thread changer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                stub.setMaintenanceEvent("MIGRATE_ON_HOST_MAINTENANCE");
+                Thread.sleep(300);
+                stub.preempt();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        changer.start();
+
+        long start = System.currentTimeMillis();
+        assertEquals("TRUE", longPoll("instance/preempted", 5));
+        // woken by its own change only, not by maintenance event before it
+        assertTrue(System.currentTimeMillis() - start >= 450);
+        changer.join();
+
+        start = System.currentTimeMillis();
+        assertEquals("TRUE", longPoll("instance/preempted", 1));
+        assertTrue(System.currentTimeMillis() - start >= 900);
+    }
+
+    @Test
+    public void notifyEvents() throws Exception {
+        MetadataEventWatcher watcher = new MetadataEventWatcher(stub.getBaseUrl());
+        BlockingQueue<MetadataEventWatcher.Event> events = new LinkedBlockingQueue<>();
+        watcher.onEvent(events::add);
+        watcher.start();
+
+        try {
+            // let pollers read current value and park on long poll
+            Thread.sleep(200);
+            assertTrue(events.isEmpty());
+
+            stub.setMaintenanceEvent("MIGRATE_ON_HOST_MAINTENANCE");
+            assertEquals(MetadataEventWatcher.Event.MIGRATE_ON_HOST_MAINTENANCE, events.poll(1, TimeUnit.SECONDS));
+
+            stub.preempt();
+            assertEquals(MetadataEventWatcher.Event.PREEMPTED, events.poll(1, TimeUnit.SECONDS));
+        } finally {
+            watcher.stop();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package debug;
+
+import com.langcode.gcetoolbox.EnvDetector;
+import com.langcode.gcetoolbox.Instance;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in of GCE metadata server for tests and simulation, supports wait_for_change long poll.
+ * <p>
+ * Point {@link EnvDetector} to it with {@link EnvDetector#withBackend(com.google.api.services.compute.Compute,
+ * String, String)} or the gce.metadata.host system property.
+ */
+public class MetadataStub implements AutoCloseable {
+
+    private final static String PREFIX = "/computeMetadata/v1/";
+    private final static long MAX_WAIT_MS = 300_000;
+
+    private final HashMap<String, String> values = new HashMap<>();
+    // like the real server, etag changes only when value of that path changes
+    private final HashMap<String, Long> versions = new HashMap<>();
+    private long lastVersion = 0;
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public MetadataStub() {
+        set("instance/preempted", "FALSE");
+        set("instance/maintenance-event", "NONE");
+    }
+
+    /**
+     * Stub values of a VM, zone is in the same form as real metadata server (projects/NUM/zones/ZONE).
+     */
+    public MetadataStub(String projectId, Instance instance, String privateIP) {
+        this();
+        set("project/project-id", projectId);
+        set("instance/name", instance.getName());
+        set("instance/zone", "projects/" + projectId + "/zones/" + instance.getZone());
+        set("instance/network-interfaces/0/ip", privateIP);
+    }
+
+    public synchronized void set(String metaPath, String value) {
+        if (value.equals(values.put(metaPath, value))) {
+            return;
+        }
+        versions.put(metaPath, ++lastVersion);
+        notifyAll();
+    }
+
+    private String etagOf(String metaPath) {
+        return String.valueOf(versions.getOrDefault(metaPath, 0L));
+    }
+
+    public void setAttribute(String attrName, String value) {
+        set("instance/attributes/" + attrName, value);
+    }
+
+    public void preempt() {
+        set("instance/preempted", "TRUE");
+    }
+
+    public void setMaintenanceEvent(String event) {
+        set("instance/maintenance-event", event);
+    }
+
+    public synchronized MetadataStub start() throws IOException {
+        if (server != null) {
+            return this;
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PREFIX, this::handle);
+        // long polls park a thread each
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return host:port, suitable for the gce.metadata.host system property
+     */
+    public String getHost() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + getHost() + PREFIX;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return value and its etag, or null if path not exists
+     */
+    private synchronized String[] read(String metaPath, String query) throws InterruptedException {
+        boolean waitForChange = false;
+        String lastEtag = null;
+        long timeout = MAX_WAIT_MS;
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.equals("wait_for_change=true")) {
+                    waitForChange = true;
+                } else if (param.startsWith("last_etag=")) {
+                    lastEtag = param.substring("last_etag=".length());
+                } else if (param.startsWith("timeout_sec=")) {
+                    timeout = Math.min(timeout, Long.parseLong(param.substring("timeout_sec=".length())) * 1000);
+                }
+            }
+        }
+
+        if (waitForChange) {
+            // without last_etag the request waits for next change of this path
+            String since = lastEtag == null ? etagOf(metaPath) : lastEtag;
+            long until = System.currentTimeMillis() + timeout;
+            long remain;
+            while (etagOf(metaPath).equals(since) && (remain = until - System.currentTimeMillis()) > 0) {
+                wait(remain);
+            }
+        }
+
+        String value = values.get(metaPath);
+        return value == null ? null : new String[]{value, etagOf(metaPath)};
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"Google".equals(exchange.getRequestHeaders().getFirst("Metadata-Flavor"))) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            String metaPath = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            String[] result = read(metaPath, exchange.getRequestURI().getRawQuery());
+            if (result == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] body = result[0].getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Metadata-Flavor", "Google");
+            exchange.getResponseHeaders().add("ETag", result[1]);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException ex) {
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package debug;
+
+import com.langcode.gcetoolbox.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class PeerPublisherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static int servers(Path file) throws Exception {
+        return Files.exists(file) ? read(file).split("server ").length - 1 : 0;
+    }
+
+    private static void waitForServers(Path file, int expected) throws Exception {
+        long until = System.currentTimeMillis() + 3000;
+        while (servers(file) != expected && System.currentTimeMillis() < until) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, servers(file));
+    }
+
+    @Test
+    public void publishOnMembershipChange() throws Exception {
+        SimulatedCompute sim = new SimulatedCompute("sim-project");
+        sim.addZone("us-central1-a", "us-central1");
+        sim.addTemplate("worker", "n1-standard-1");
+        Group group = sim.addGroup("us-central1-a", "workers", "worker", 3);
+
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.detect();
+
+            Path file = folder.getRoot().toPath().resolve("upstream.conf");
+            PeerPublisher publisher = new PeerPublisher(detector, "workers", 8080);
+            publisher.publishToFile(file, PeerPublisher.Format.NGINX_UPSTREAM);
+            publisher.serveHttp(0);
+            publisher.start();
+
+            try {
+                // published on own thread
+                waitForServers(file, 3);
+                String content = read(file);
+                assertTrue(content.startsWith("upstream workers {"));
+                assertTrue(content.contains("server " + sim.getPrivateIP(self) + ":8080;"));
+                assertEquals(PosixFilePermissions.fromString("rw-r--r--"), Files.getPosixFilePermissions(file));
+
+                URL url = new URL("http://127.0.0.1:" + publisher.getHttpPort() + "/peers");
+                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                assertEquals(200, conn.getResponseCode());
+                String etag = conn.getHeaderField("ETag");
+                assertNotNull(etag);
+                conn.getInputStream().close();
+
+                conn = (HttpURLConnection) url.openConnection();
+                conn.addRequestProperty("If-None-Match", etag);
+                assertEquals(304, conn.getResponseCode());
+
+                // new members are PROVISIONING when membership changes, RUNNING only later
+                sim.setBootDelay(800, TimeUnit.MILLISECONDS);
+                detector.resizeGroup(group, 5);
+                detector.enableAutoRefresh(50, TimeUnit.MILLISECONDS);
+
+                long until = System.currentTimeMillis() + 3000;
+                while (detector.getNumberOfPeers() != 5 && System.currentTimeMillis() < until) {
+                    Thread.sleep(20);
+                }
+                assertEquals(5, detector.getNumberOfPeers());
+                assertEquals(3, servers(file));
+
+                // picked up without another membership change
+                waitForServers(file, 5);
+
+                conn = (HttpURLConnection) url.openConnection();
+                conn.addRequestProperty("If-None-Match", etag);
+                assertEquals(200, conn.getResponseCode());
+                conn.getInputStream().close();
+            } finally {
+                detector.disableAutoRefresh();
+                publisher.stop();
+            }
+        }
+    }
+}
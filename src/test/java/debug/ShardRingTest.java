@@ -0,0 +1,82 @@
+package debug;
+
+import com.langcode.gcetoolbox.Instance;
+import com.langcode.gcetoolbox.ShardRing;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class ShardRingTest {
+
+    private final static int KEYS = 20000;
+
+    private List<Instance> makePeers(int num) {
+        ArrayList<Instance> peers = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            peers.add(new Instance("project", "us-central1-a", "vm-" + i));
+        }
+        return peers;
+    }
+
+    @Test
+    public void emptyRingOwnsEverything() {
+        ShardRing ring = new ShardRing(null);
+        assertNull(ring.ownerOf("key"));
+        assertTrue(ring.isMine("key"));
+    }
+
+    @Test
+    public void keysSpreadOverPeers() {
+        List<Instance> peers = makePeers(4);
+        ShardRing ring = new ShardRing(peers.get(0));
+        ring.update(peers);
+
+        HashMap<Instance, Integer> counts = new HashMap<>();
+        int mine = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            counts.merge(ring.ownerOf(key), 1, Integer::sum);
+            if (ring.isMine(key)) {
+                mine++;
+            }
+        }
+
+        assertEquals(4, counts.size());
+        counts.forEach((peer, count) -> assertTrue(count > KEYS / 4 / 2));
+        assertEquals((int) counts.get(peers.get(0)), mine);
+    }
+
+    @Test
+    public void resizeMovesOnlyFewKeys() {
+        List<Instance> peers = makePeers(10);
+        ShardRing ring = new ShardRing(null);
+        ring.update(peers);
+
+        Instance[] before = new Instance[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            before[i] = ring.ownerOf("key-" + i);
+        }
+
+        peers.add(new Instance("project", "us-central1-a", "vm-10"));
+        ring.update(peers);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            Instance after = ring.ownerOf("key-" + i);
+            if (!after.equals(before[i])) {
+                assertEquals("vm-10", after.getName());
+                moved++;
+            }
+        }
+
+        // expect about 1/11 of keys moved to the new peer
+        assertTrue(moved > KEYS / 11 / 2);
+        assertTrue(moved < KEYS / 11 * 2);
+    }
+}
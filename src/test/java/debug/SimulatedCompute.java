@@ -0,0 +1,885 @@
+package debug;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.*;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.langcode.gcetoolbox.Group;
+import com.langcode.gcetoolbox.Instance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-memory Compute API for tests and load tests, no GCP project needed.
+ * <p>
+ * It works as the {@link HttpTransport} of a real {@link Compute} client, so requests go through the
+ * same url building, json parsing and pagination as production. Latency, page size, quota errors and
+ * operation delay are configurable. Only the resources used by this toolbox are simulated.
+ */
+public class SimulatedCompute {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SimulatedCompute.class);
+
+    private final static String API_PREFIX = "https://www.googleapis.com/compute/beta/projects/";
+    private final static JsonFactory JSON = JacksonFactory.getDefaultInstance();
+    private final static DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    private final static Pattern FILTER_PATTERN = Pattern.compile("^\\s*(\\S+)\\s+(eq|=)\\s+\"?([^\"]*)\"?\\s*$");
+
+    private final static class SimVm {
+        final String zone;
+        final String name;
+        final long id;
+        final String createTime;
+        final String privateIP;
+        String machineType;
+        String status = "RUNNING";
+        HashMap<String, String> labels = new HashMap<>();
+        long labelVersion = 1;
+        List<Metadata.Items> metadata = new ArrayList<>();
+        // private and public (null if none) IP of network interfaces after nic0
+        List<String[]> extraNics = new ArrayList<>();
+        SimGroup group = null;
+
+        SimVm(String zone, String name, long id) {
+            this.zone = zone;
+            this.name = name;
+            this.id = id;
+            this.createTime = OffsetDateTime.now().format(TIMESTAMP_FORMAT);
+            this.privateIP = "10." + ((id >> 16) & 255) + "." + ((id >> 8) & 255) + "." + (id & 255);
+        }
+    }
+
+    private final static class SimGroup {
+        final String zone;
+        final String name;
+        final String template;
+        final LinkedHashSet<String> members = new LinkedHashSet<>();
+        int targetSize = 0;
+        int nextMember = 0;
+
+        SimGroup(String zone, String name, String template) {
+            this.zone = zone;
+            this.name = name;
+            this.template = template;
+        }
+    }
+
+    private final static class SimError extends Exception {
+        final int code;
+        final String reason;
+
+        SimError(int code, String reason, String message) {
+            super(message);
+            this.code = code;
+            this.reason = reason;
+        }
+    }
+
+    private final String project;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("simulated compute").setDaemon(true).build());
+
+    private volatile long latencyMs = 0;
+    private volatile long latencyJitterMs = 0;
+    private volatile int pageSize = 500;
+    private volatile double quotaErrorRate = 0;
+    private volatile long operationDelayMs = 0;
+    private volatile int instanceQuota = Integer.MAX_VALUE;
+    private volatile long bootDelayMs = 0;
+
+    private final TreeMap<String, String> zones = new TreeMap<>();
+    private final HashMap<String, InstanceTemplate> templates = new HashMap<>();
+    private final TreeMap<String, SimGroup> groups = new TreeMap<>();
+    private final TreeMap<String, SimVm> vms = new TreeMap<>();
+    private final HashMap<String, Operation> operations = new HashMap<>();
+    private long nextId = 1;
+
+    private final HttpTransport transport = new HttpTransport() {
+        @Override
+        protected LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    return SimulatedCompute.this.execute(method, url, readContent(this));
+                }
+            };
+        }
+    };
+
+    public SimulatedCompute(String project) {
+        this.project = project;
+    }
+
+    public Compute newCompute() {
+        return new Compute.Builder(transport, JSON, null)
+                .setApplicationName("gcetoolbox/1.0")
+                .build();
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    /**
+     * Every request sleeps latency plus a random jitter up to jitter.
+     */
+    public void setLatency(long latency, long jitter, TimeUnit timeUnit) {
+        latencyMs = timeUnit.toMillis(latency);
+        latencyJitterMs = timeUnit.toMillis(jitter);
+    }
+
+    /**
+     * Max items per page of list calls, smaller maxResults of request wins.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Ratio of requests failed with 403 rateLimitExceeded.
+     */
+    public void setQuotaErrorRate(double rate) {
+        quotaErrorRate = rate;
+    }
+
+    /**
+     * Creating instances beyond this number fails with 403 quotaExceeded.
+     */
+    public void setInstanceQuota(int quota) {
+        instanceQuota = quota;
+    }
+
+    /**
+     * Mutations return a RUNNING operation and take effect after delay, 0 applies them synchronously.
+     */
+    public void setOperationDelay(long delay, TimeUnit timeUnit) {
+        operationDelayMs = timeUnit.toMillis(delay);
+    }
+
+    /**
+     * Members added to a group by resize start in PROVISIONING and become RUNNING after delay, like a real group.
+     */
+    public void setBootDelay(long delay, TimeUnit timeUnit) {
+        bootDelayMs = timeUnit.toMillis(delay);
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public synchronized void addZone(String zone, String region) {
+        zones.put(zone, region);
+    }
+
+    public synchronized void addTemplate(String name, String machineType) {
+        InstanceProperties properties = new InstanceProperties();
+        properties.setMachineType(machineType);
+
+        NetworkInterface nic = new NetworkInterface();
+        nic.setNetwork(API_PREFIX + project + "/global/networks/default");
+        properties.setNetworkInterfaces(Collections.singletonList(nic));
+
+        AttachedDiskInitializeParams diskParams = new AttachedDiskInitializeParams();
+        diskParams.setDiskType("pd-standard");
+        diskParams.setSourceImage("projects/debian-cloud/global/images/family/debian-9");
+        AttachedDisk disk = new AttachedDisk();
+        disk.setBoot(true);
+        disk.setInitializeParams(diskParams);
+        properties.setDisks(Collections.singletonList(disk));
+
+        Metadata metadata = new Metadata();
+        metadata.setItems(new ArrayList<>());
+        properties.setMetadata(metadata);
+
+        InstanceTemplate template = new InstanceTemplate();
+        template.setName(name);
+        template.setProperties(properties);
+        template.setSelfLink(API_PREFIX + project + "/global/instanceTemplates/" + name);
+        templates.put(name, template);
+    }
+
+    public synchronized Group addGroup(String zone, String name, String template, int size) {
+        requireZone(zone);
+        SimGroup group = new SimGroup(zone, name, template);
+        groups.put(key(zone, name), group);
+        group.targetSize = size;
+        fillGroup(group, false);
+        return new Group(project, zone, name);
+    }
+
+    public synchronized Instance addInstance(String zone, String name, String machineType) {
+        requireZone(zone);
+        SimVm vm = new SimVm(zone, name, nextId++);
+        vm.machineType = machineType;
+        vms.put(key(zone, name), vm);
+        return new Instance(project, zone, name);
+    }
+
+    public synchronized String getStatus(Instance instance) {
+        SimVm vm = vms.get(key(instance.getZone(), instance.getName()));
+        return vm == null ? "" : vm.status;
+    }
+
+    public synchronized String getPrivateIP(Instance instance) {
+        SimVm vm = vms.get(key(instance.getZone(), instance.getName()));
+        return vm == null ? "" : vm.privateIP;
+    }
+
+    /**
+     * Attach another network interface to VM, publicIP null means it has no access config.
+     */
+    public synchronized void addNetworkInterface(Instance instance, String privateIP, @Nullable String publicIP) {
+        SimVm vm = vms.get(key(instance.getZone(), instance.getName()));
+        if (vm != null) {
+            vm.extraNics.add(new String[]{privateIP, publicIP});
+        }
+    }
+
+    /**
+     * Change status of a VM directly, e.g. to simulate a VM stopped outside of the API.
+     */
+    public synchronized void setInstanceStatus(Instance instance, String status) {
+        SimVm vm = vms.get(key(instance.getZone(), instance.getName()));
+        if (vm != null) {
+            vm.status = status;
+        }
+    }
+
+    public synchronized List<Instance> getInstancesOfGroup(Group group) {
+        ArrayList<Instance> result = new ArrayList<>();
+        SimGroup simGroup = groups.get(key(group.getZone(), group.getName()));
+        if (simGroup != null) {
+            simGroup.members.forEach(name -> result.add(new Instance(project, group.getZone(), name)));
+        }
+        return result;
+    }
+
+    /**
+     * Metadata server of a simulated VM, call {@link MetadataStub#start()} before use.
+     */
+    public MetadataStub newMetadataStub(Instance instance) {
+        return new MetadataStub(project, instance, getPrivateIP(instance));
+    }
+
+    private void requireZone(String zone) {
+        if (!zones.containsKey(zone)) {
+            throw new IllegalArgumentException("zone " + zone + " not added");
+        }
+    }
+
+    /**
+     * Keys sort by zone first, so one zone is the range [zone + "/", zone + "0") as '0' follows '/'.
+     */
+    private static String key(String zone, String name) {
+        return zone + "/" + name;
+    }
+
+    private String zoneUrl(String zone) {
+        return API_PREFIX + project + "/zones/" + zone;
+    }
+
+    private void fillGroup(SimGroup group, boolean booting) {
+        InstanceTemplate template = templates.get(group.template);
+        String machineType = template == null ? "n1-standard-1" : template.getProperties().getMachineType();
+
+        while (group.members.size() < group.targetSize) {
+            String name;
+            do {
+                name = group.name + "-" + Integer.toString(group.nextMember++, 36);
+            } while (vms.containsKey(key(group.zone, name)));
+
+            SimVm vm = new SimVm(group.zone, name, nextId++);
+            vm.machineType = machineType;
+            vm.group = group;
+            vms.put(key(group.zone, name), vm);
+            group.members.add(name);
+
+            if (booting) {
+                vm.status = "PROVISIONING";
+                scheduler.schedule(() -> {
+                    synchronized (SimulatedCompute.this) {
+                        if (vm.status.equals("PROVISIONING")) {
+                            vm.status = "RUNNING";
+                        }
+                    }
+                }, bootDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        int excess = group.members.size() - group.targetSize;
+        for (String name : new ArrayList<>(group.members)) {
+            if (excess-- <= 0) {
+                break;
+            }
+            group.members.remove(name);
+            vms.remove(key(group.zone, name));
+        }
+    }
+
+    private static byte[] readContent(LowLevelHttpRequest request) throws IOException {
+        if (request.getStreamingContent() == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        if ("gzip".equals(request.getContentEncoding())) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private LowLevelHttpResponse execute(String method, String url, byte[] body) throws IOException {
+        requestCount.incrementAndGet();
+
+        long latency = latencyMs;
+        if (latencyJitterMs > 0) {
+            latency += ThreadLocalRandom.current().nextLong(latencyJitterMs);
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("simulated request interrupted", ex);
+            }
+        }
+
+        MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+        response.setContentType("application/json; charset=UTF-8");
+        try {
+            if (quotaErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < quotaErrorRate) {
+                throw new SimError(403, "rateLimitExceeded", "Rate Limit Exceeded");
+            }
+            GenericJson result;
+            synchronized (this) {
+                result = route(method, url, body);
+                response.setContent(JSON.toString(result));
+            }
+            response.setStatusCode(200);
+        } catch (SimError ex) {
+            response.setStatusCode(ex.code);
+            response.setContent(errorJson(ex));
+        }
+        return response;
+    }
+
+    private static String errorJson(SimError error) throws IOException {
+        GenericJson detail = new GenericJson();
+        detail.put("domain", "global");
+        detail.put("reason", error.reason);
+        detail.put("message", error.getMessage());
+
+        GenericJson content = new GenericJson();
+        content.put("code", error.code);
+        content.put("message", error.getMessage());
+        content.put("errors", Collections.singletonList(detail));
+
+        GenericJson json = new GenericJson();
+        json.put("error", content);
+        return JSON.toString(json);
+    }
+
+    private GenericJson route(String method, String url, byte[] body) throws SimError, IOException {
+        int queryStart = url.indexOf('?');
+        String path = queryStart < 0 ? url : url.substring(0, queryStart);
+        Map<String, String> query = parseQuery(queryStart < 0 ? "" : url.substring(queryStart + 1));
+
+        int projectStart = path.indexOf("/projects/");
+        if (projectStart < 0) {
+            throw new SimError(404, "notFound", "unknown url " + url);
+        }
+        List<String> parts = Splitter.on('/').splitToList(path.substring(projectStart + "/projects/".length()));
+        if (!parts.get(0).equals(project)) {
+            throw new SimError(404, "notFound", "project " + parts.get(0) + " not found");
+        }
+
+        String signature = method + " " + String.join("/", normalize(parts.subList(1, parts.size())));
+        switch (signature) {
+            case "GET zones":
+                return listZones(query);
+            case "GET zones/*":
+                return zoneOf(parts.get(2));
+            case "GET aggregated/instanceGroups":
+                return aggregatedGroups(query);
+            case "GET zones/*/instanceGroups":
+                return listGroups(parts.get(2), query);
+            case "GET zones/*/instanceGroups/*":
+                return groupOf(requireGroup(parts.get(2), parts.get(4)));
+            case "POST zones/*/instanceGroups/*/listInstances":
+                return listGroupInstances(requireGroup(parts.get(2), parts.get(4)), query);
+            case "GET aggregated/instanceGroupManagers":
+                return aggregatedManagers(query);
+            case "GET zones/*/instanceGroupManagers/*":
+                return managerOf(requireGroup(parts.get(2), parts.get(4)));
+            case "POST zones/*/instanceGroupManagers/*/listManagedInstances":
+                return listManagedInstances(requireGroup(parts.get(2), parts.get(4)));
+            case "POST zones/*/instanceGroupManagers/*/resize":
+                return resize(requireGroup(parts.get(2), parts.get(4)), Integer.parseInt(query.get("size")));
+            case "POST zones/*/instanceGroupManagers/*/deleteInstances":
+                return deleteGroupInstances(requireGroup(parts.get(2), parts.get(4)),
+                        JSON.fromString(new String(body, "UTF-8"), InstanceGroupManagersDeleteInstancesRequest.class));
+            case "GET zones/*/instances":
+                return listInstances(parts.get(2), query);
+            case "POST zones/*/instances":
+                return insert(parts.get(2),
+                        JSON.fromString(new String(body, "UTF-8"), com.google.api.services.compute.model.Instance.class));
+            case "GET zones/*/instances/*":
+                return instanceOf(requireVm(parts.get(2), parts.get(4)));
+            case "DELETE zones/*/instances/*":
+                return deleteInstance(requireVm(parts.get(2), parts.get(4)));
+            case "POST zones/*/instances/*/stop":
+                return setStatus(requireVm(parts.get(2), parts.get(4)), "stop", "TERMINATED");
+            case "POST zones/*/instances/*/start":
+                return setStatus(requireVm(parts.get(2), parts.get(4)), "start", "RUNNING");
+            case "POST zones/*/instances/*/setLabels":
+                return setLabels(requireVm(parts.get(2), parts.get(4)),
+                        JSON.fromString(new String(body, "UTF-8"), InstancesSetLabelsRequest.class));
+            case "GET zones/*/operations/*":
+                return requireOperation(parts.get(4));
+            case "GET global/instanceTemplates/*":
+                return requireTemplate(parts.get(3));
+            default:
+                throw new SimError(404, "notFound", "not simulated: " + method + " " + url);
+        }
+    }
+
+    /**
+     * Replace resource names with * so routes can be matched as strings, e.g. zones/us-east1-b/instances/vm-1
+     * becomes zones/&#42;/instances/&#42;.
+     */
+    private static List<String> normalize(List<String> parts) {
+        ArrayList<String> result = new ArrayList<>(parts);
+        for (int i = 0; i < result.size(); i++) {
+            String collection = result.get(i);
+            if (i + 1 < result.size() && (collection.equals("zones") || collection.equals("instanceGroups")
+                    || collection.equals("instanceGroupManagers") || collection.equals("instances")
+                    || collection.equals("operations") || collection.equals("instanceTemplates"))) {
+                result.set(++i, "*");
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        HashMap<String, String> result = new HashMap<>();
+        for (String param : Splitter.on('&').omitEmptyStrings().split(query)) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                result.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private <T> List<T> page(List<T> all, Map<String, String> query, GenericJson response) {
+        int offset = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+        int size = pageSize;
+        if (query.containsKey("maxResults")) {
+            size = Math.min(size, Integer.parseInt(query.get("maxResults")));
+        }
+        int end = Math.min(all.size(), offset + size);
+        if (end < all.size()) {
+            response.set("nextPageToken", String.valueOf(end));
+        }
+        return new ArrayList<>(all.subList(Math.min(offset, end), end));
+    }
+
+    private SimGroup requireGroup(String zone, String name) throws SimError {
+        SimGroup group = groups.get(key(zone, name));
+        if (group == null) {
+            throw new SimError(404, "notFound", "group " + name + " not found in " + zone);
+        }
+        return group;
+    }
+
+    private SimVm requireVm(String zone, String name) throws SimError {
+        SimVm vm = vms.get(key(zone, name));
+        if (vm == null) {
+            throw new SimError(404, "notFound", "instance " + name + " not found in " + zone);
+        }
+        return vm;
+    }
+
+    private Operation requireOperation(String name) throws SimError {
+        Operation operation = operations.get(name);
+        if (operation == null) {
+            throw new SimError(404, "notFound", "operation " + name + " not found");
+        }
+        return operation;
+    }
+
+    private InstanceTemplate requireTemplate(String name) throws SimError {
+        InstanceTemplate template = templates.get(name);
+        if (template == null) {
+            throw new SimError(404, "notFound", "template " + name + " not found");
+        }
+        return template;
+    }
+
+    private void checkQuota(int adding) throws SimError {
+        if (vms.size() + adding > instanceQuota) {
+            throw new SimError(403, "quotaExceeded", "Quota 'INSTANCES' exceeded. Limit: " + instanceQuota);
+        }
+    }
+
+    private Operation operation(String zone, String type, String target, Runnable apply) {
+        Operation operation = new Operation();
+        operation.setName("operation-" + (nextId++));
+        operation.setZone(zoneUrl(zone));
+        operation.setOperationType(type);
+        operation.setTargetLink(target);
+        operations.put(operation.getName(), operation);
+
+        if (operationDelayMs <= 0) {
+            apply.run();
+            operation.setStatus("DONE");
+            operation.setProgress(100);
+        } else {
+            operation.setStatus("RUNNING");
+            operation.setProgress(0);
+            scheduler.schedule(() -> {
+                synchronized (SimulatedCompute.this) {
+                    try {
+                        apply.run();
+                    } catch (Exception ex) {
+                        LOG.error("simulated operation {} failed", operation.getName(), ex);
+                    }
+                    operation.setStatus("DONE");
+                    operation.setProgress(100);
+                }
+            }, operationDelayMs, TimeUnit.MILLISECONDS);
+        }
+        return operation.clone();
+    }
+
+    private com.google.api.services.compute.model.Zone zoneOf(String zone) throws SimError {
+        String region = zones.get(zone);
+        if (region == null) {
+            throw new SimError(404, "notFound", "zone " + zone + " not found");
+        }
+        com.google.api.services.compute.model.Zone result = new com.google.api.services.compute.model.Zone();
+        result.setName(zone);
+        result.setRegion(API_PREFIX + project + "/regions/" + region);
+        result.setStatus("UP");
+        result.setSelfLink(zoneUrl(zone));
+        return result;
+    }
+
+    private ZoneList listZones(Map<String, String> query) throws SimError {
+        ZoneList response = new ZoneList();
+        ArrayList<com.google.api.services.compute.model.Zone> items = new ArrayList<>();
+        for (String zone : page(new ArrayList<>(zones.keySet()), query, response)) {
+            items.add(zoneOf(zone));
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private InstanceGroup groupOf(SimGroup group) {
+        InstanceGroup result = new InstanceGroup();
+        result.setName(group.name);
+        result.setZone(zoneUrl(group.zone));
+        result.setSize(group.members.size());
+        result.setSelfLink(zoneUrl(group.zone) + "/instanceGroups/" + group.name);
+        return result;
+    }
+
+    private InstanceGroupList listGroups(String zone, Map<String, String> query) {
+        InstanceGroupList response = new InstanceGroupList();
+        ArrayList<SimGroup> inZone = new ArrayList<>(groups.subMap(zone + "/", zone + "0").values());
+        ArrayList<InstanceGroup> items = new ArrayList<>();
+        for (SimGroup group : page(inZone, query, response)) {
+            items.add(groupOf(group));
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private InstanceGroupAggregatedList aggregatedGroups(Map<String, String> query) {
+        InstanceGroupAggregatedList response = new InstanceGroupAggregatedList();
+        LinkedHashMap<String, InstanceGroupsScopedList> items = new LinkedHashMap<>();
+        for (SimGroup group : page(new ArrayList<>(groups.values()), query, response)) {
+            InstanceGroupsScopedList scoped = items.computeIfAbsent("zones/" + group.zone, k -> {
+                InstanceGroupsScopedList list = new InstanceGroupsScopedList();
+                list.setInstanceGroups(new ArrayList<>());
+                return list;
+            });
+            scoped.getInstanceGroups().add(groupOf(group));
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private InstanceGroupsListInstances listGroupInstances(SimGroup group, Map<String, String> query) {
+        InstanceGroupsListInstances response = new InstanceGroupsListInstances();
+        ArrayList<InstanceWithNamedPorts> items = new ArrayList<>();
+        for (String name : page(new ArrayList<>(group.members), query, response)) {
+            InstanceWithNamedPorts item = new InstanceWithNamedPorts();
+            item.setInstance(Instance.makeVmURL(project, group.zone, name));
+            item.setStatus(vms.get(key(group.zone, name)).status);
+            items.add(item);
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private InstanceGroupManager managerOf(SimGroup group) {
+        InstanceGroupManagerActionsSummary actions = new InstanceGroupManagerActionsSummary();
+        int none = 0;
+        int creating = 0;
+        for (String name : group.members) {
+            if (vms.get(key(group.zone, name)).status.equals("RUNNING")) {
+                none++;
+            } else {
+                creating++;
+            }
+        }
+        actions.setNone(none);
+        actions.setCreating(creating + Math.max(0, group.targetSize - group.members.size()));
+        actions.setDeleting(Math.max(0, group.members.size() - group.targetSize));
+        actions.setRecreating(0);
+        actions.setAbandoning(0);
+        actions.setRestarting(0);
+        actions.setRefreshing(0);
+
+        InstanceGroupManager result = new InstanceGroupManager();
+        result.setName(group.name);
+        result.setZone(zoneUrl(group.zone));
+        result.setBaseInstanceName(group.name);
+        result.setTargetSize(group.targetSize);
+        result.setInstanceTemplate(API_PREFIX + project + "/global/instanceTemplates/" + group.template);
+        result.setInstanceGroup(zoneUrl(group.zone) + "/instanceGroups/" + group.name);
+        result.setSelfLink(zoneUrl(group.zone) + "/instanceGroupManagers/" + group.name);
+        result.setCurrentActions(actions);
+        return result;
+    }
+
+    private InstanceGroupManagerAggregatedList aggregatedManagers(Map<String, String> query) {
+        InstanceGroupManagerAggregatedList response = new InstanceGroupManagerAggregatedList();
+        LinkedHashMap<String, InstanceGroupManagersScopedList> items = new LinkedHashMap<>();
+        for (SimGroup group : page(new ArrayList<>(groups.values()), query, response)) {
+            InstanceGroupManagersScopedList scoped = items.computeIfAbsent("zones/" + group.zone, k -> {
+                InstanceGroupManagersScopedList list = new InstanceGroupManagersScopedList();
+                list.setInstanceGroupManagers(new ArrayList<>());
+                return list;
+            });
+            scoped.getInstanceGroupManagers().add(managerOf(group));
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private InstanceGroupManagersListManagedInstancesResponse listManagedInstances(SimGroup group) {
+        ArrayList<ManagedInstance> items = new ArrayList<>();
+        for (String name : group.members) {
+            SimVm vm = vms.get(key(group.zone, name));
+            ManagedInstance item = new ManagedInstance();
+            item.setInstance(Instance.makeVmURL(project, group.zone, name));
+            item.setId(BigInteger.valueOf(vm.id));
+            item.setInstanceStatus(vm.status);
+            item.setCurrentAction(vm.status.equals("RUNNING") ? "NONE" : "CREATING");
+            items.add(item);
+        }
+        InstanceGroupManagersListManagedInstancesResponse response = new InstanceGroupManagersListManagedInstancesResponse();
+        response.setManagedInstances(items);
+        return response;
+    }
+
+    private Operation resize(SimGroup group, int size) throws SimError {
+        checkQuota(size - group.members.size());
+        group.targetSize = size;
+        return operation(group.zone, "compute.instanceGroupManagers.resize",
+                zoneUrl(group.zone) + "/instanceGroupManagers/" + group.name, () -> fillGroup(group, true));
+    }
+
+    private Operation deleteGroupInstances(SimGroup group, InstanceGroupManagersDeleteInstancesRequest request) {
+        ArrayList<String> names = new ArrayList<>();
+        if (request.getInstances() != null) {
+            for (String url : request.getInstances()) {
+                String name = new Instance(url).getName();
+                if (group.members.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        group.targetSize -= names.size();
+        return operation(group.zone, "compute.instanceGroupManagers.deleteInstances",
+                zoneUrl(group.zone) + "/instanceGroupManagers/" + group.name, () -> names.forEach(name -> {
+                    group.members.remove(name);
+                    vms.remove(key(group.zone, name));
+                }));
+    }
+
+    private com.google.api.services.compute.model.Instance instanceOf(SimVm vm) {
+        com.google.api.services.compute.model.Instance result = new com.google.api.services.compute.model.Instance();
+        result.setName(vm.name);
+        result.setId(BigInteger.valueOf(vm.id));
+        result.setZone(zoneUrl(vm.zone));
+        result.setSelfLink(Instance.makeVmURL(project, vm.zone, vm.name));
+        result.setCreationTimestamp(vm.createTime);
+        result.setStatus(vm.status);
+        result.setMachineType(zoneUrl(vm.zone) + "/machineTypes/" + vm.machineType);
+        if (!vm.labels.isEmpty()) {
+            result.setLabels(new HashMap<>(vm.labels));
+        }
+        result.setLabelFingerprint(String.valueOf(vm.labelVersion));
+
+        ArrayList<NetworkInterface> nics = new ArrayList<>();
+        nics.add(nicOf(0, vm.privateIP, null));
+        for (String[] extra : vm.extraNics) {
+            nics.add(nicOf(nics.size(), extra[0], extra[1]));
+        }
+        result.setNetworkInterfaces(nics);
+
+        Metadata metadata = new Metadata();
+        metadata.setFingerprint("sim");
+        metadata.setItems(new ArrayList<>(vm.metadata));
+        result.setMetadata(metadata);
+        return result;
+    }
+
+    private NetworkInterface nicOf(int index, String privateIP, @Nullable String publicIP) {
+        NetworkInterface nic = new NetworkInterface();
+        nic.setName("nic" + index);
+        nic.setNetwork(API_PREFIX + project + "/global/networks/" + (index == 0 ? "default" : "net" + index));
+        nic.setNetworkIP(privateIP);
+        if (publicIP != null) {
+            AccessConfig accessConfig = new AccessConfig();
+            accessConfig.setName("External NAT");
+            accessConfig.setType("ONE_TO_ONE_NAT");
+            accessConfig.setNatIP(publicIP);
+            nic.setAccessConfigs(Collections.singletonList(accessConfig));
+        }
+        return nic;
+    }
+
+    private InstanceList listInstances(String zone, Map<String, String> query) throws SimError {
+        String field = null;
+        Predicate<String> accept = null;
+        if (query.containsKey("filter")) {
+            Matcher matcher = FILTER_PATTERN.matcher(query.get("filter"));
+            if (!matcher.matches()) {
+                throw new SimError(400, "invalid", "filter not supported by simulator: " + query.get("filter"));
+            }
+            field = matcher.group(1);
+            String value = matcher.group(3);
+            // like the real API, eq matches a whole value with a regular expression and = compares literally
+            if (matcher.group(2).equals("eq")) {
+                Pattern regex = Pattern.compile(value);
+                accept = v -> regex.matcher(v).matches();
+            } else {
+                accept = value::equals;
+            }
+        }
+
+        ArrayList<SimVm> matched = new ArrayList<>();
+        for (SimVm vm : vms.subMap(zone + "/", zone + "0").values()) {
+            if (field == null
+                    || (field.equals("name") && accept.test(vm.name))
+                    || (field.equals("status") && accept.test(vm.status))
+                    || (field.startsWith("labels.") && vm.labels.containsKey(field.substring(7))
+                            && accept.test(vm.labels.get(field.substring(7))))) {
+                matched.add(vm);
+            }
+        }
+
+        InstanceList response = new InstanceList();
+        ArrayList<com.google.api.services.compute.model.Instance> items = new ArrayList<>();
+        for (SimVm vm : page(matched, query, response)) {
+            items.add(instanceOf(vm));
+        }
+        response.setItems(items);
+        return response;
+    }
+
+    private Operation insert(String zone, com.google.api.services.compute.model.Instance data) throws SimError {
+        requireZoneExists(zone);
+        if (vms.containsKey(key(zone, data.getName()))) {
+            throw new SimError(409, "alreadyExists", "instance " + data.getName() + " already exists");
+        }
+        checkQuota(1);
+
+        SimVm vm = new SimVm(zone, data.getName(), nextId++);
+        List<String> machineType = Splitter.on('/').splitToList(data.getMachineType());
+        vm.machineType = machineType.get(machineType.size() - 1);
+        vm.status = "PROVISIONING";
+        if (data.getLabels() != null) {
+            vm.labels.putAll(data.getLabels());
+        }
+        if (data.getMetadata() != null && data.getMetadata().getItems() != null) {
+            vm.metadata.addAll(data.getMetadata().getItems());
+        }
+        vms.put(key(zone, vm.name), vm);
+
+        return operation(zone, "compute.instances.insert", Instance.makeVmURL(project, zone, vm.name),
+                () -> vm.status = "RUNNING");
+    }
+
+    private void requireZoneExists(String zone) throws SimError {
+        if (!zones.containsKey(zone)) {
+            throw new SimError(404, "notFound", "zone " + zone + " not found");
+        }
+    }
+
+    private Operation deleteInstance(SimVm vm) {
+        vm.status = "STOPPING";
+        return operation(vm.zone, "compute.instances.delete", Instance.makeVmURL(project, vm.zone, vm.name), () -> {
+            vms.remove(key(vm.zone, vm.name));
+            if (vm.group != null) {
+                vm.group.members.remove(vm.name);
+            }
+        });
+    }
+
+    private Operation setStatus(SimVm vm, String action, String status) {
+        vm.status = status.equals("RUNNING") ? "STAGING" : "STOPPING";
+        return operation(vm.zone, "compute.instances." + action, Instance.makeVmURL(project, vm.zone, vm.name),
+                () -> vm.status = status);
+    }
+
+    private Operation setLabels(SimVm vm, InstancesSetLabelsRequest request) throws SimError {
+        if (!String.valueOf(vm.labelVersion).equals(request.getLabelFingerprint())) {
+            throw new SimError(412, "conditionNotMet", "Labels fingerprint either invalid or resource labels have changed");
+        }
+        vm.labelVersion++;
+        HashMap<String, String> labels = new HashMap<>();
+        if (request.getLabels() != null) {
+            labels.putAll(request.getLabels());
+        }
+        return operation(vm.zone, "compute.instances.setLabels", Instance.makeVmURL(project, vm.zone, vm.name),
+                () -> vm.labels = labels);
+    }
+}
@@ -0,0 +1,279 @@
+package debug;
+
+import com.langcode.gcetoolbox.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class SimulatedEnvTest {
+
+    private SimulatedCompute sim;
+    private Group group;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedCompute("sim-project");
+        sim.addZone("us-central1-a", "us-central1");
+        sim.addZone("us-central1-b", "us-central1");
+        sim.addTemplate("worker", "n1-standard-1");
+        sim.setPageSize(50);
+        for (int i = 0; i < 20; i++) {
+            sim.addGroup(i % 2 == 0 ? "us-central1-a" : "us-central1-b", "other-" + i, "worker", 10);
+        }
+        group = sim.addGroup("us-central1-a", "workers", "worker", 120);
+    }
+
+    @Test
+    public void detectInSimulatedGroup() throws IOException, GceToolBoxError {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.detect();
+
+            assertTrue(detector.runningInGCE());
+            assertEquals(self.getName(), detector.getName());
+            assertEquals("us-central1-a", detector.getZone());
+            assertEquals("workers", detector.getUsedByGroup());
+            assertEquals(120, detector.getNumberOfPeers());
+
+            detector.resizeGroup(group, 150);
+            detector.detect();
+            assertEquals(150, detector.getNumberOfPeers());
+
+            List<Instance> peers = detector.getPeers();
+            detector.markDraining(peers.get(1));
+            detector.detect();
+            // draining filter is opt-in
+            assertEquals(150, detector.getNumberOfPeers());
+
+            detector.setExcludeDraining(true);
+            detector.detect();
+            assertEquals(149, detector.getNumberOfPeers());
+            assertFalse(detector.getPeers().contains(peers.get(1)));
+
+            // a restarted instance clears the label it left behind
+            EnvDetector restarted = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.markDraining(self);
+            restarted.detect();
+            assertFalse(restarted.getInstanceDetail(self).getLabels().containsKey("gcetoolbox-draining"));
+        }
+    }
+
+    @Test
+    public void listenersFollowDirectDetect() throws IOException, GceToolBoxError {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            ArrayList<Integer> numbers = new ArrayList<>();
+            detector.onNumberOfPeersChanged(numbers::add);
+
+            detector.detect();
+            assertEquals(120, (int) numbers.get(0));
+            ShardRing ring = detector.createShardRing(ShardRing.DEFAULT_VIRTUAL_NODES);
+            assertEquals(120, ring.getNumberOfMembers());
+            assertEquals(self, ring.getSelf());
+
+            detector.resizeGroup(group, 130);
+            detector.detect();
+            assertEquals(130, ring.getNumberOfMembers());
+
+            // late listener gets what others were told
+            ShardRing late = detector.createShardRing(ShardRing.DEFAULT_VIRTUAL_NODES);
+            assertEquals(130, late.getNumberOfMembers());
+            late.close();
+
+            detector.resizeGroup(group, 125);
+            detector.detect();
+            assertEquals(125, ring.getNumberOfMembers());
+            assertEquals(130, late.getNumberOfMembers());
+
+            assertEquals(3, numbers.size());
+            assertEquals(125, (int) numbers.get(2));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shardRingNeedsDetect() {
+        EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), "http://127.0.0.1:1/");
+        detector.createShardRing(ShardRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    @Test
+    public void concurrentDetectSharesOneRefresh() throws Exception {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector single = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            long start = sim.getRequestCount();
+            single.detect();
+            long singleRequests = sim.getRequestCount() - start;
+
+            sim.setLatency(20, 0, TimeUnit.MILLISECONDS);
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            CountDownLatch ready = new CountDownLatch(1);
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            start = sim.getRequestCount();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    ready.await();
+                    detector.detect();
+                    return null;
+                }));
+            }
+            ready.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(singleRequests, sim.getRequestCount() - start);
+            EnvSnapshot snapshot = detector.getSnapshot();
+            assertNotNull(snapshot);
+            assertEquals("workers", snapshot.getUsedByGroup());
+            assertEquals(120, snapshot.getNumberOfPeers());
+        }
+    }
+
+    @Test
+    public void capacityReportOfSimulatedProject() throws IOException, GceToolBoxError {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.detect();
+
+            List<Instance> workers = sim.getInstancesOfGroup(group);
+            sim.setInstanceStatus(workers.get(1), "TERMINATED");
+            sim.setInstanceStatus(workers.get(2), "STAGING");
+
+            long requests = sim.getRequestCount();
+            List<GroupCapacity> report = new CapacityPlanner(detector, 4).getCapacityReport();
+            assertEquals(21, report.size());
+            // one aggregated list plus one call per group
+            assertEquals(22, sim.getRequestCount() - requests);
+
+            GroupCapacity capacity = report.stream()
+                    .filter(c -> c.getGroup().getName().equals("workers"))
+                    .findFirst()
+                    .orElseThrow(AssertionError::new);
+            assertEquals(120, capacity.getTargetSize());
+            assertEquals(120, capacity.getCurrentSize());
+            assertEquals(118, capacity.getRunning());
+            assertEquals(1, capacity.getProvisioning());
+            assertEquals(1, capacity.getStopped());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityPlannerRejectsZeroParallelism() {
+        new CapacityPlanner(EnvDetector.getInstance(), 0);
+    }
+
+    @Test
+    public void bulkInstanceDetails() throws IOException, GceToolBoxError {
+        List<Instance> workers = sim.getInstancesOfGroup(group);
+        Instance self = workers.get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.detect();
+            detector.markDraining(workers.get(3));
+            sim.addNetworkInterface(workers.get(3), "10.1.0.3", "34.1.2.3");
+            sim.addNetworkInterface(workers.get(3), "10.2.0.3", null);
+
+            long requests = sim.getRequestCount();
+            Map<Instance, InstanceDetail> details = detector.getInstanceDetailsOfGroup(group);
+            // 3 pages of group members plus 3 pages of the 120 members filtered by name, not the 220 in zone
+            assertEquals(6, sim.getRequestCount() - requests);
+
+            assertEquals(120, details.size());
+            assertEquals(workers.get(0), details.keySet().iterator().next());
+
+            InstanceDetail detail = details.get(workers.get(3));
+            assertEquals(sim.getPrivateIP(workers.get(3)), detail.getPrivateIP());
+            assertEquals(Arrays.asList(sim.getPrivateIP(workers.get(3)), "10.1.0.3", "10.2.0.3"),
+                    detail.getPrivateIPs());
+            assertEquals(Arrays.asList("", "34.1.2.3", ""), detail.getPublicIPs());
+            assertEquals("", detail.getPublicIP());
+            assertEquals(1, details.get(workers.get(4)).getPrivateIPs().size());
+            assertEquals("n1-standard-1", detail.getMachineType());
+            assertEquals("us-central1-a", detail.getZone());
+            assertEquals("true", detail.getLabels().get("gcetoolbox-draining"));
+            assertTrue(detail.getMetadata().isEmpty());
+            assertTrue(detail.isRunning());
+            assertTrue(Math.abs(detail.getCreateTimestamp() - System.currentTimeMillis()) < 60_000);
+
+            assertEquals(120, detector.getPeerDetails().size());
+
+            // names of a big group do not fit one filter and are split over several list calls
+            Group big = sim.addGroup("us-central1-b", "big-group", "worker", 300);
+            Map<Instance, InstanceDetail> bigDetails = detector.getInstanceDetailsOfGroup(big);
+            assertEquals(sim.getInstancesOfGroup(big), new ArrayList<>(bigDetails.keySet()));
+        }
+    }
+
+    @Test
+    public void topologyOfSimulatedProject() throws IOException, GceToolBoxError {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+            detector.detect();
+
+            sim.addGroup("us-central1-b", "workers", "worker", 2);
+
+            Topology topology = new Topology(detector);
+            assertEquals(2, topology.getZonesOfRegion("us-central1").size());
+            assertEquals(11, topology.getGroupsOfZone("us-central1-a").size());
+            assertEquals(22, topology.getGroupsOfRegion("us-central1").size());
+            assertEquals("us-central1-b", topology.getGroup("us-central1-b", "other-1").getZone());
+            assertNull(topology.getGroup("us-central1-a", "other-1"));
+            assertEquals(2, topology.getGroupsByName("workers").size());
+            assertEquals(group.getZone(), topology.getGroup("us-central1-a", "workers").getZone());
+
+            long requests = sim.getRequestCount();
+            assertEquals(22, topology.getAllGroups().size());
+            assertEquals(requests, sim.getRequestCount());
+        }
+    }
+
+    @Test
+    public void topologyAutoRefresh() throws Exception {
+        Instance self = sim.getInstancesOfGroup(group).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+
+            // detects first, topology of an unknown project can not be loaded
+            Topology topology = detector.getTopology(50, TimeUnit.MILLISECONDS);
+            try {
+                assertTrue(detector.hasDetect());
+                assertSame(topology, detector.getTopology());
+                assertEquals(21, topology.getAllGroups().size());
+                long loadTime = topology.getLoadTime();
+
+                sim.addZone("us-east1-b", "us-east1");
+                sim.addGroup("us-east1-b", "east", "worker", 1);
+
+                long until = System.currentTimeMillis() + 3000;
+                while (topology.getGroupsOfRegion("us-east1").isEmpty() && System.currentTimeMillis() < until) {
+                    Thread.sleep(20);
+                }
+                assertEquals("east", topology.getGroupsOfRegion("us-east1").get(0).getName());
+                assertTrue(topology.getLoadTime() > loadTime);
+            } finally {
+                topology.disableAutoRefresh();
+            }
+
+            long requests = sim.getRequestCount();
+            Thread.sleep(200);
+            assertEquals(requests, sim.getRequestCount());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package debug;
+
+import com.langcode.gcetoolbox.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class SimulatedLoad {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SimulatedLoad.class);
+
+    @Test
+    public void refreshAtScale() throws IOException, GceToolBoxError {
+        int groups = Integer.getInteger("groups", 200);
+        int groupSize = Integer.getInteger("groupSize", 50);
+
+        SimulatedCompute sim = new SimulatedCompute("sim-project");
+        sim.addTemplate("worker", "n1-standard-1");
+        for (int i = 0; i < 4; i++) {
+            sim.addZone("us-central1-" + (char) ('a' + i), "us-central1");
+        }
+        Group last = null;
+        for (int i = 0; i < groups; i++) {
+            last = sim.addGroup("us-central1-" + (char) ('a' + i % 4), "group-" + i, "worker", groupSize);
+        }
+        sim.setLatency(20, 30, TimeUnit.MILLISECONDS);
+
+        Instance self = sim.getInstancesOfGroup(last).get(0);
+        try (MetadataStub stub = sim.newMetadataStub(self).start()) {
+            EnvDetector detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+
+            long start = System.currentTimeMillis();
+            detector.detect();
+            LOG.info("first detect {} ms, {} requests, {} peers", System.currentTimeMillis() - start,
+                    sim.getRequestCount(), detector.getNumberOfPeers());
+
+            long requests = sim.getRequestCount();
+            start = System.currentTimeMillis();
+            detector.detect();
+            LOG.info("refresh {} ms, {} requests", System.currentTimeMillis() - start, sim.getRequestCount() - requests);
+
+            requests = sim.getRequestCount();
+            start = System.currentTimeMillis();
+            int total = detector.getAllGroups().size();
+            LOG.info("all {} groups {} ms, {} requests", total, System.currentTimeMillis() - start,
+                    sim.getRequestCount() - requests);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package debug;
+
+import com.langcode.gcetoolbox.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+@Category(UnitTest.class)
+public class WarmPoolTest {
+
+    private final static String POOL_LABEL = "gcetoolbox-warm-pool";
+
+    private SimulatedCompute sim;
+    private MetadataStub stub;
+    private EnvDetector detector;
+
+    @Before
+    public void setUp() throws Exception {
+        sim = new SimulatedCompute("sim-project");
+        sim.addZone("us-central1-a", "us-central1");
+        sim.addTemplate("burst", "n1-standard-4");
+        Instance self = sim.addInstance("us-central1-a", "controller", "n1-standard-1");
+        stub = sim.newMetadataStub(self).start();
+        detector = EnvDetector.withBackend(sim.newCompute(), sim.getProject(), stub.getBaseUrl());
+        detector.detect();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 3000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private int poolInstancesInZone() {
+        try {
+            return detector.getInstancesWithLabel(sim.getProject(), "us-central1-a", POOL_LABEL, "burst").size();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    @Test
+    public void acquireAndReplenish() throws Exception {
+        WarmPool pool = new WarmPool(detector, "burst", "us-central1-a", 3);
+        pool.setStatusPolling(10, 1000, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        waitUntil(() -> pool.getReadyCount() == 3 && pool.getPendingCount() == 0);
+
+        Instance acquired = pool.acquire();
+        assertNotNull(acquired);
+        assertEquals("RUNNING", sim.getStatus(acquired));
+        // out of pool before acquire returns
+        assertFalse(detector.getInstanceDetail(acquired).getLabels().containsKey(POOL_LABEL));
+        waitUntil(() -> pool.getReadyCount() == 3 && pool.getPendingCount() == 0);
+        pool.stop();
+
+        // a new pool picks up stopped instances left by previous one, running ones may belong to a live pool
+        Instance foreign = new Instance(sim.getProject(), "us-central1-a", "provisioned-by-other-pool");
+        detector.createInstance(foreign, "burst", null, Collections.singletonMap(POOL_LABEL, "burst"));
+
+        WarmPool restarted = new WarmPool(detector, "burst", "us-central1-a", 3);
+        restarted.setStatusPolling(10, 1000, TimeUnit.MILLISECONDS);
+        restarted.start(1, TimeUnit.MINUTES);
+        assertEquals(3, restarted.getReadyCount());
+        assertEquals(0, restarted.getPendingCount());
+        Thread.sleep(100);
+        assertEquals("RUNNING", sim.getStatus(acquired));
+        assertEquals("RUNNING", sim.getStatus(foreign));
+        restarted.stop();
+    }
+
+    @Test
+    public void instancesChangedOutsideAreDropped() throws Exception {
+        WarmPool pool = new WarmPool(detector, "burst", "us-central1-a", 2);
+        pool.setStatusPolling(10, 1000, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        try {
+            waitUntil(() -> pool.getReadyCount() == 2 && pool.getPendingCount() == 0);
+
+            Instance[] ready = detector.getInstancesWithLabel(sim.getProject(), "us-central1-a", POOL_LABEL, "burst")
+                    .keySet().toArray(new Instance[0]);
+            detector.deleteInstance(ready[0]);
+            sim.setInstanceStatus(ready[1], "RUNNING");
+
+            // neither is handed out nor put back, pool refills with new instances
+            assertNull(pool.acquire());
+            waitUntil(() -> pool.getReadyCount() == 2 && pool.getPendingCount() == 0);
+            Instance acquired = pool.acquire();
+            assertNotNull(acquired);
+            assertNotEquals(ready[0], acquired);
+            assertNotEquals(ready[1], acquired);
+            assertEquals("RUNNING", sim.getStatus(acquired));
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void stopDeletesInstanceBeingProvisioned() throws Exception {
+        sim.setOperationDelay(300, TimeUnit.MILLISECONDS);
+
+        WarmPool pool = new WarmPool(detector, "burst", "us-central1-a", 1);
+        pool.setStatusPolling(10, 5000, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        waitUntil(() -> poolInstancesInZone() == 1);
+        pool.stop();
+
+        waitUntil(() -> poolInstancesInZone() == 0);
+    }
+
+    @Test
+    public void staleRunningInstancesAreDeletedOnStart() throws Exception {
+        Instance stale = new Instance(sim.getProject(), "us-central1-a", "left-by-dead-pool");
+        detector.createInstance(stale, "burst", null, Collections.singletonMap(POOL_LABEL, "burst"));
+        Thread.sleep(100);
+
+        WarmPool pool = new WarmPool(detector, "burst", "us-central1-a", 1);
+        pool.setStatusPolling(10, 20, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        pool.stop();
+        assertEquals("", sim.getStatus(stale));
+    }
+
+    @Test
+    public void longTemplateNameFitsInstanceName() throws Exception {
+        String template = "burst-template-with-a-very-long-name-for-a-warm-pool-test";
+        sim.addTemplate(template, "n1-standard-4");
+
+        WarmPool pool = new WarmPool(detector, template, "us-central1-a", 1);
+        pool.setStatusPolling(10, 1000, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        try {
+            waitUntil(() -> pool.getReadyCount() == 1);
+            Instance acquired = pool.acquire();
+            assertNotNull(acquired);
+            assertTrue(acquired.getName().length() <= 63);
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void slowProvisioningDoesNotLeak() throws Exception {
+        sim.setOperationDelay(300, TimeUnit.MILLISECONDS);
+
+        WarmPool pool = new WarmPool(detector, "burst", "us-central1-a", 2);
+        pool.setStatusPolling(10, 100, TimeUnit.MILLISECONDS);
+        pool.start(1, TimeUnit.MINUTES);
+        try {
+            waitUntil(() -> pool.getPendingCount() == 0);
+            assertEquals(0, pool.getReadyCount());
+            // instances not running in time are deleted instead of left behind
+            waitUntil(() -> poolInstancesInZone() == 0);
+        } finally {
+            pool.stop();
+        }
+    }
+}